@@ -18,6 +18,8 @@ public class Configuration {
 
     public int serverPort = 7070;
 
+    public boolean statsEndpoint = false;
+
     //ssl
 
     public boolean sslEnabled = false;
@@ -26,6 +28,8 @@ public class Configuration {
 
     public String sslPrivateKeyPath = "";
 
+    public int responseCacheMegabytes = 64;
+
     //cors
 
     public String corsHost = "http://localhost:63342";
@@ -60,6 +64,24 @@ public class Configuration {
 
     public boolean updateDatabase = true;
 
+    public boolean inMemorySearch = false;
+
+    public int imdbDatabaseConnections = Runtime.getRuntime().availableProcessors();
+
+    public String imdbDatasetsUrl = "https://datasets.imdbws.com/";
+
+    public int imdbDatasetsDownloadThreads = 3;
+
+    public int imdbDatasetsBatchSize = 10_000;
+
+    public boolean imdbDatasetsProjection = true;
+
+    public boolean incrementalUpdate = false;
+
+    public boolean importInMemory = false;
+
+    public boolean imdbDatasetsCache = true;
+
     public final String databaseFileExtension = ".sqlite3";
 
     public final String databaseDirectory = "databases";
@@ -74,6 +96,8 @@ public class Configuration {
         JSONObject configJson = new JSONObject();
 
         configJson.put("serverPort", serverPort);
+        configJson.put("statsEndpoint", statsEndpoint);
+        configJson.put("responseCacheMegabytes", responseCacheMegabytes);
 
         configJson.put("sslEnabled", sslEnabled);
         configJson.put("sslCertificatePath", sslCertificatePath);
@@ -95,6 +119,15 @@ public class Configuration {
         configJson.put("recaptchaSecret", recaptchaSecret);
 
         configJson.put("updateDatabase", updateDatabase);
+        configJson.put("inMemorySearch", inMemorySearch);
+        configJson.put("imdbDatabaseConnections", imdbDatabaseConnections);
+        configJson.put("imdbDatasetsUrl", imdbDatasetsUrl);
+        configJson.put("imdbDatasetsDownloadThreads", imdbDatasetsDownloadThreads);
+        configJson.put("imdbDatasetsBatchSize", imdbDatasetsBatchSize);
+        configJson.put("imdbDatasetsProjection", imdbDatasetsProjection);
+        configJson.put("incrementalUpdate", incrementalUpdate);
+        configJson.put("importInMemory", importInMemory);
+        configJson.put("imdbDatasetsCache", imdbDatasetsCache);
 
         Files.writeString(file.toPath(), configJson.toString(2), StandardOpenOption.CREATE);
     }
@@ -104,6 +137,8 @@ public class Configuration {
         JSONObject configJson = new JSONObject(fileContent);
 
         serverPort = configJson.getInt("serverPort");
+        statsEndpoint = configJson.optBoolean("statsEndpoint", statsEndpoint);
+        responseCacheMegabytes = configJson.optInt("responseCacheMegabytes", responseCacheMegabytes);
 
         sslEnabled = configJson.getBoolean("sslEnabled");
         sslCertificatePath = configJson.getString("sslCertificatePath");
@@ -125,6 +160,15 @@ public class Configuration {
         recaptchaSecret = configJson.getString("recaptchaSecret");
 
         updateDatabase = configJson.getBoolean("updateDatabase");
+        inMemorySearch = configJson.optBoolean("inMemorySearch", inMemorySearch);
+        imdbDatabaseConnections = configJson.optInt("imdbDatabaseConnections", imdbDatabaseConnections);
+        imdbDatasetsUrl = configJson.optString("imdbDatasetsUrl", imdbDatasetsUrl);
+        imdbDatasetsDownloadThreads = configJson.optInt("imdbDatasetsDownloadThreads", imdbDatasetsDownloadThreads);
+        imdbDatasetsBatchSize = configJson.optInt("imdbDatasetsBatchSize", imdbDatasetsBatchSize);
+        imdbDatasetsProjection = configJson.optBoolean("imdbDatasetsProjection", imdbDatasetsProjection);
+        incrementalUpdate = configJson.optBoolean("incrementalUpdate", incrementalUpdate);
+        importInMemory = configJson.optBoolean("importInMemory", importInMemory);
+        imdbDatasetsCache = configJson.optBoolean("imdbDatasetsCache", imdbDatasetsCache);
     }
 
 }
@@ -0,0 +1,187 @@
+package codes.nh.tvratings.database;
+
+import org.sqlite.SQLiteConfig;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fixed size pool of read-only connections to a SQLite database, so queries can run in parallel
+ * instead of queuing behind a single connection. Every connection has its own {@link StatementCache}.
+ */
+public class ConnectionPool {
+
+    private static final int BORROW_TIMEOUT_SECONDS = 30;
+
+    private static final int STATEMENT_CACHE_SIZE = 256;
+
+    public record PooledConnection(Connection connection, StatementCache statementCache) {
+    }
+
+    private final List<PooledConnection> connections = new ArrayList<>();
+
+    private final BlockingQueue<PooledConnection> idleConnections;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Opens the connections.
+     *
+     * @param databaseUrl The JDBC url of the database.
+     * @param size        The number of connections.
+     * @param mmapSize    The maximum number of bytes of the database file that are memory-mapped.
+     * @throws SQLException If a connection can't be opened.
+     */
+    public ConnectionPool(String databaseUrl, int size, long mmapSize) throws SQLException {
+        this.idleConnections = new ArrayBlockingQueue<>(size);
+
+        SQLiteConfig config = new SQLiteConfig();
+        config.setReadOnly(true);
+        config.setSharedCache(false);
+
+        for (int i = 0; i < size; i++) {
+            Connection connection = DriverManager.getConnection(databaseUrl, config.toProperties());
+            try (Statement statement = connection.createStatement();) {
+                statement.execute("PRAGMA query_only = true");
+                statement.execute("PRAGMA mmap_size = " + mmapSize);
+            }
+            PooledConnection pooledConnection = new PooledConnection(connection, new StatementCache(connection, STATEMENT_CACHE_SIZE));
+            connections.add(pooledConnection);
+            idleConnections.add(pooledConnection);
+        }
+    }
+
+    //metrics
+
+    private long borrows = 0;
+
+    private long waits = 0;
+
+    private long totalWaitNanos = 0;
+
+    private long maxWaitNanos = 0;
+
+    /**
+     * Takes an idle connection from the pool, waits if there is none.
+     * It has to be given back with {@link #release(PooledConnection)}.
+     *
+     * @return The connection.
+     * @throws SQLException If the pool is closed or no connection became idle in time.
+     */
+    public PooledConnection borrow() throws SQLException {
+        if (closed) throw new SQLException("connection pool closed");
+
+        PooledConnection connection = idleConnections.poll();
+        if (connection != null) {
+            recordBorrow(0);
+            return connection;
+        }
+
+        long startTime = System.nanoTime();
+        try {
+            connection = idleConnections.poll(BORROW_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted while waiting for a connection");
+        }
+        if (connection == null) {
+            throw new SQLException("no connection available after " + BORROW_TIMEOUT_SECONDS + " seconds");
+        }
+        recordBorrow(System.nanoTime() - startTime);
+        return connection;
+    }
+
+    /**
+     * Gives a borrowed connection back to the pool.
+     *
+     * @param connection The connection.
+     */
+    public void release(PooledConnection connection) {
+        if (closed) {
+            close(connection);
+            return;
+        }
+        idleConnections.add(connection);
+
+        //the pool was closed in the meantime and might have missed the connection,
+        //whoever removes it from the queue closes it
+        if (closed && idleConnections.remove(connection)) {
+            close(connection);
+        }
+    }
+
+    /**
+     * Closes all idle connections. Borrowed connections are closed when they are released.
+     */
+    public void close() {
+        closed = true;
+        PooledConnection connection;
+        while ((connection = idleConnections.poll()) != null) {
+            close(connection);
+        }
+    }
+
+    private void close(PooledConnection connection) {
+        connection.statementCache().clear();
+        try {
+            connection.connection().close();
+        } catch (SQLException ignored) {
+        }
+    }
+
+    private synchronized void recordBorrow(long waitNanos) {
+        borrows++;
+        if (waitNanos > 0) {
+            waits++;
+            totalWaitNanos += waitNanos;
+            maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+        }
+    }
+
+    public int size() {
+        return connections.size();
+    }
+
+    public int getIdleConnections() {
+        return idleConnections.size();
+    }
+
+    public synchronized long getBorrows() {
+        return borrows;
+    }
+
+    public synchronized long getWaits() {
+        return waits;
+    }
+
+    public synchronized long getTotalWaitNanos() {
+        return totalWaitNanos;
+    }
+
+    public synchronized long getMaxWaitNanos() {
+        return maxWaitNanos;
+    }
+
+    /**
+     * @return The statement caches of all connections.
+     */
+    public List<StatementCache> getStatementCaches() {
+        return connections.stream().map(PooledConnection::statementCache).toList();
+    }
+
+    @Override
+    public synchronized String toString() {
+        double averageWaitMs = waits == 0 ? 0 : totalWaitNanos / 1e6 / waits;
+        return "%d connections (%d idle), %d borrows, %d waited (%.2f ms average, %.2f ms max)".formatted(
+                size(), getIdleConnections(), borrows, waits, averageWaitMs, maxWaitNanos / 1e6
+        );
+    }
+
+}
@@ -0,0 +1,346 @@
+package codes.nh.tvratings.database;
+
+import codes.nh.tvratings.utils.Utils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * An in-memory index of the normalized titles of all shows with votes that answers title prefix queries
+ * ranked by votes, without querying SQLite.
+ * Every word of a title starts a key (the rest of the title), e.g. "breaking bad" has the keys "breaking bad" and "bad".
+ * The keys are stored as (show, offset) pairs in a sorted primitive array, so a query is a binary search
+ * for the first matching key followed by a scan of the matching range.
+ * The results of very short queries (large ranges) are precomputed.
+ */
+public class ImdbAutocompleteIndex {
+
+    public static final int MAX_LIMIT = 20;
+
+    /**
+     * The results of queries up to this length are precomputed.
+     */
+    private static final int PRECOMPUTED_QUERY_LENGTH = 3;
+
+    private static final int MAX_TITLE_LENGTH = 0xFFFF;
+
+    private static final int NULL_INT = Integer.MIN_VALUE;
+
+    private static final Pattern DIACRITICS_PATTERN = Pattern.compile("\\p{M}+");
+
+    private static final Pattern SEPARATORS_PATTERN = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    private final String[] showIds;
+
+    private final String[] titles;
+
+    private final int[] startYears;
+
+    private final int[] votes;
+
+    private final String[] normalizedTitles;
+
+    /**
+     * show << 16 | offset of the key in the normalized title, sorted by key
+     */
+    private final long[] keys;
+
+    private final Map<String, int[]> precomputedResults = new HashMap<>();
+
+    private long memoryBytes;
+
+    private ImdbAutocompleteIndex(String[] showIds, String[] titles, int[] startYears, int[] votes, String[] normalizedTitles, long[] keys) {
+        this.showIds = showIds;
+        this.titles = titles;
+        this.startYears = startYears;
+        this.votes = votes;
+        this.normalizedTitles = normalizedTitles;
+        this.keys = keys;
+    }
+
+    /**
+     * Loads the titles of all shows that have votes into memory.
+     *
+     * @param connection The connection to an IMDb database.
+     * @return The autocomplete index.
+     * @throws SQLException If a database error occurs.
+     */
+    public static ImdbAutocompleteIndex load(Connection connection) throws SQLException {
+        long startTime = System.currentTimeMillis();
+        Utils.log("loading autocomplete index..");
+
+        List<String> showIds = new ArrayList<>();
+        List<String> titles = new ArrayList<>();
+        List<Integer> startYears = new ArrayList<>();
+        List<Integer> votes = new ArrayList<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT showId, title, startYear, votes FROM shows WHERE votes IS NOT NULL AND title IS NOT NULL");) {
+            while (resultSet.next()) {
+                showIds.add(resultSet.getString(1));
+                titles.add(resultSet.getString(2));
+                int startYear = resultSet.getInt(3);
+                startYears.add(resultSet.wasNull() ? NULL_INT : startYear);
+                votes.add(resultSet.getInt(4));
+            }
+        }
+
+        int size = showIds.size();
+        String[] normalizedTitles = new String[size];
+        List<Long> keyList = new ArrayList<>();
+        for (int show = 0; show < size; show++) {
+            String normalizedTitle = normalize(titles.get(show));
+            if (normalizedTitle.length() > MAX_TITLE_LENGTH) {
+                normalizedTitle = normalizedTitle.substring(0, MAX_TITLE_LENGTH);
+            }
+            normalizedTitles[show] = normalizedTitle;
+
+            //a key starts at every word
+            for (int offset = 0; offset < normalizedTitle.length(); offset++) {
+                if (offset == 0 || normalizedTitle.charAt(offset - 1) == ' ') {
+                    keyList.add(((long) show << 16) | offset);
+                }
+            }
+        }
+
+        ImdbAutocompleteIndex index = new ImdbAutocompleteIndex(
+                showIds.toArray(String[]::new),
+                titles.toArray(String[]::new),
+                startYears.stream().mapToInt(Integer::intValue).toArray(),
+                votes.stream().mapToInt(Integer::intValue).toArray(),
+                normalizedTitles,
+                new long[keyList.size()]
+        );
+
+        Long[] sortedKeys = keyList.toArray(Long[]::new);
+        Arrays.sort(sortedKeys, index::compareKeys);
+        for (int i = 0; i < sortedKeys.length; i++) {
+            index.keys[i] = sortedKeys[i];
+        }
+
+        index.precomputeResults();
+        index.memoryBytes = index.estimateMemoryBytes();
+
+        long time = System.currentTimeMillis() - startTime;
+        Utils.log("loaded autocomplete index (" + size + " shows, " + index.keys.length + " keys, " + (index.memoryBytes / 1024 / 1024) + " MB) in " + time + " ms");
+
+        return index;
+    }
+
+    /**
+     * Lower case, without diacritics, words separated by single spaces.
+     *
+     * @param string A title or query.
+     * @return The normalized string.
+     */
+    public static String normalize(String string) {
+        String normalized = Normalizer.normalize(string, Normalizer.Form.NFD);
+        normalized = DIACRITICS_PATTERN.matcher(normalized).replaceAll("");
+        normalized = SEPARATORS_PATTERN.matcher(normalized.toLowerCase(Locale.ROOT)).replaceAll(" ");
+        return normalized.trim();
+    }
+
+    /**
+     * @param query The query, e.g. "breaking b".
+     * @param limit The maximum number of results (at most {@link #MAX_LIMIT}).
+     * @return The shows that have a word sequence starting with the normalized query, ordered by votes.
+     */
+    public JSONArray autocomplete(String query, int limit) {
+        String prefix = normalize(query);
+        JSONArray resultJson = new JSONArray();
+        if (prefix.isEmpty()) return resultJson;
+
+        int[] shows = precomputedResults.get(prefix);
+        if (shows == null) {
+            if (prefix.length() <= PRECOMPUTED_QUERY_LENGTH) return resultJson; //no key has this prefix
+            int from = lowerBound(prefix);
+            int to = from;
+            while (to < keys.length && keyStartsWith(keys[to], prefix)) to++;
+            shows = topShows(from, to, MAX_LIMIT);
+        }
+
+        for (int i = 0; i < shows.length && i < limit; i++) {
+            resultJson.put(toJson(shows[i]));
+        }
+        return resultJson;
+    }
+
+    private JSONObject toJson(int show) {
+        JSONObject showJson = new JSONObject();
+        showJson.put("showId", showIds[show]);
+        showJson.put("title", titles[show]);
+        if (startYears[show] != NULL_INT) showJson.put("startYear", startYears[show]);
+        showJson.put("votes", votes[show]);
+        return showJson;
+    }
+
+    /**
+     * @return The estimated number of bytes used by this index.
+     */
+    public long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    public int size() {
+        return showIds.length;
+    }
+
+    public JSONObject getStatsJson() {
+        JSONObject statsJson = new JSONObject();
+        statsJson.put("shows", showIds.length);
+        statsJson.put("keys", keys.length);
+        statsJson.put("precomputedQueries", precomputedResults.size());
+        statsJson.put("memoryBytes", memoryBytes);
+        return statsJson;
+    }
+
+    //keys
+
+    private int compareKeys(long key1, long key2) {
+        String title1 = normalizedTitles[keyShow(key1)];
+        String title2 = normalizedTitles[keyShow(key2)];
+        int offset1 = keyOffset(key1);
+        int offset2 = keyOffset(key2);
+        int length = Math.min(title1.length() - offset1, title2.length() - offset2);
+        for (int i = 0; i < length; i++) {
+            int difference = title1.charAt(offset1 + i) - title2.charAt(offset2 + i);
+            if (difference != 0) return difference;
+        }
+        return (title1.length() - offset1) - (title2.length() - offset2);
+    }
+
+    /**
+     * @return The index of the first key that is not less than the prefix.
+     */
+    private int lowerBound(String prefix) {
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compareKeyToPrefix(keys[middle], prefix) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private int compareKeyToPrefix(long key, String prefix) {
+        String title = normalizedTitles[keyShow(key)];
+        int offset = keyOffset(key);
+        int length = Math.min(title.length() - offset, prefix.length());
+        for (int i = 0; i < length; i++) {
+            int difference = title.charAt(offset + i) - prefix.charAt(i);
+            if (difference != 0) return difference;
+        }
+        return (title.length() - offset) - prefix.length() < 0 ? -1 : 0;
+    }
+
+    private boolean keyStartsWith(long key, String prefix) {
+        return normalizedTitles[keyShow(key)].startsWith(prefix, keyOffset(key));
+    }
+
+    private static int keyShow(long key) {
+        return (int) (key >>> 16);
+    }
+
+    private static int keyOffset(long key) {
+        return (int) (key & 0xFFFF);
+    }
+
+    //results
+
+    /**
+     * @return The distinct shows of the keys in [from, to) with the most votes, ordered by votes.
+     */
+    private int[] topShows(int from, int to, int limit) {
+        int[] shows = new int[limit];
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            int show = keyShow(keys[i]);
+            if (count == limit && votes[show] <= votes[shows[count - 1]]) continue;
+
+            boolean duplicate = false;
+            for (int j = 0; j < count; j++) {
+                if (shows[j] == show) {
+                    duplicate = true;
+                    break;
+                }
+            }
+            if (duplicate) continue;
+
+            //insertion sort by votes
+            int position = count < limit ? count++ : count - 1;
+            while (position > 0 && votes[shows[position - 1]] < votes[show]) {
+                shows[position] = shows[position - 1];
+                position--;
+            }
+            shows[position] = show;
+        }
+        return Arrays.copyOf(shows, count);
+    }
+
+    /**
+     * The keys with the same prefix are consecutive, so every prefix up to {@link #PRECOMPUTED_QUERY_LENGTH}
+     * is a range of the sorted keys.
+     */
+    private void precomputeResults() {
+        for (int length = 1; length <= PRECOMPUTED_QUERY_LENGTH; length++) {
+            int from = 0;
+            while (from < keys.length) {
+                String prefix = keyPrefix(keys[from], length);
+                if (prefix == null) {
+                    from++;
+                    continue;
+                }
+                int to = from + 1;
+                while (to < keys.length && keyStartsWith(keys[to], prefix)) to++;
+                precomputedResults.put(prefix, topShows(from, to, MAX_LIMIT));
+                from = to;
+            }
+        }
+    }
+
+    /**
+     * @return The first characters of the key, or null if the key is shorter.
+     */
+    private String keyPrefix(long key, int length) {
+        String title = normalizedTitles[keyShow(key)];
+        int offset = keyOffset(key);
+        if (title.length() - offset < length) return null;
+        return title.substring(offset, offset + length);
+    }
+
+    private long estimateMemoryBytes() {
+        long bytes = (long) keys.length * Long.BYTES;
+        bytes += (long) showIds.length * (Integer.BYTES * 2 + 3 * 8); //columns and string references
+        for (int show = 0; show < showIds.length; show++) {
+            bytes += estimateStringBytes(showIds[show]) + estimateStringBytes(titles[show]) + estimateStringBytes(normalizedTitles[show]);
+        }
+        for (Map.Entry<String, int[]> entry : precomputedResults.entrySet()) {
+            bytes += 32 + estimateStringBytes(entry.getKey()) + 16 + (long) entry.getValue().length * Integer.BYTES;
+        }
+        return bytes;
+    }
+
+    /**
+     * String object and byte array headers plus 1 (Latin-1) or 2 (UTF-16) bytes per character.
+     */
+    private static long estimateStringBytes(String string) {
+        boolean latin1 = string.chars().allMatch(c -> c <= 0xFF);
+        return 40 + (long) string.length() * (latin1 ? 1 : 2);
+    }
+
+}
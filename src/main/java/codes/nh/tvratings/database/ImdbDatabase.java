@@ -2,183 +2,785 @@ package codes.nh.tvratings.database;
 
 import codes.nh.tvratings.utils.Utils;
 import org.json.JSONArray;
-
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The IMDb database contains TV show data.
  */
 public class ImdbDatabase extends SqliteDatabase {
 
+    /**
+     * The whole database file fits into the memory-mapped region of each read connection.
+     */
+    public static final long MMAP_SIZE = 4L * 1024 * 1024 * 1024;
+
     public ImdbDatabase(String databasePath) {
         super(databasePath);
     }
 
+    /**
+     * @return The version of the data, the name of the database file without extension (the import date "yyyyMMdd").
+     */
+    public String getVersion() {
+        String fileName = new File(getDatabasePath()).getName();
+        int extensionIndex = fileName.lastIndexOf('.');
+        return extensionIndex == -1 ? fileName : fileName.substring(0, extensionIndex);
+    }
+
+    private volatile long lastModified = 0;
+
+    /**
+     * @return The modification time of the database file, i.e. when the import finished.
+     * The time is read once, so later changes to the file don't change it.
+     */
+    public long getLastModified() {
+        if (lastModified == 0) {
+            lastModified = new File(getDatabasePath()).lastModified();
+        }
+        return lastModified;
+    }
+
     /*
     Select genres as a sorted, comma separated string. It should be sorted by default, if not:
     (SELECT GROUP_CONCAT(genre) FROM (SELECT g.genre FROM genres g WHERE t.showId = g.showId ORDER BY g.genre)) AS genres
     */
-    private final String selectGenresQuery = "(SELECT GROUP_CONCAT(genre) FROM genres g WHERE t.showId = g.showId) AS genres";
-
-    public JSONArray search(
-            String type,
-            String titleSearch,
-            String minVotes,
-            String maxVotes,
-            String minRating,
-            String maxRating,
-            String minYear,
-            String maxYear,
-            String minDuration,
-            String maxDuration,
-            String genres,
-            String sortColumn,
-            String sortOrder,
-            String pageNumber,
-            String pageLimit
-    ) throws SQLException {
+    static final String GENRES_QUERY = "(SELECT GROUP_CONCAT(genre) FROM genres g WHERE t.showId = g.showId)";
 
-        StringBuilder sqlQueryBuilder = new StringBuilder();
-        sqlQueryBuilder.append("SELECT *");
+    static final String SELECT_GENRES_QUERY = GENRES_QUERY + " AS genres";
+
+    private volatile ImdbSearchIndex searchIndex;
+
+    /**
+     * Loads the shows and episodes into an in-memory {@link ImdbSearchIndex} that answers subsequent searches.
+     *
+     * @throws SQLException If a database error occurs.
+     */
+    public void loadSearchIndex() throws SQLException {
+        searchIndex = ImdbSearchIndex.load(getConnection());
+    }
+
+    private volatile ImdbFuzzyIndex fuzzyIndex;
+
+    /**
+     * Loads the show titles into an in-memory {@link ImdbFuzzyIndex} that answers fuzzy title searches.
+     *
+     * @throws SQLException If a database error occurs.
+     */
+    public void loadFuzzyIndex() throws SQLException {
+        fuzzyIndex = ImdbFuzzyIndex.load(getConnection());
+    }
+
+    private volatile ImdbAutocompleteIndex autocompleteIndex;
+
+    /**
+     * Loads the show titles into an in-memory {@link ImdbAutocompleteIndex} that answers {@link #autocomplete} requests.
+     *
+     * @throws SQLException If a database error occurs.
+     */
+    public void loadAutocompleteIndex() throws SQLException {
+        autocompleteIndex = ImdbAutocompleteIndex.load(getConnection());
+    }
+
+    /**
+     * @param query The beginning of a title or of words in a title.
+     * @param limit The maximum number of shows (at most {@link ImdbAutocompleteIndex#MAX_LIMIT}).
+     * @return The matching shows ordered by votes, or null if the autocomplete index isn't loaded.
+     */
+    public JSONArray autocomplete(String query, int limit) {
+        ImdbAutocompleteIndex autocompleteIndex = this.autocompleteIndex;
+        if (autocompleteIndex == null) return null;
+        return autocompleteIndex.autocomplete(query, limit);
+    }
+
+    /**
+     * @return The counters of {@link SqliteDatabase#getStatsJson} and the sizes of the autocomplete and fuzzy index.
+     */
+    @Override
+    public JSONObject getStatsJson() {
+        JSONObject statsJson = super.getStatsJson();
+        ImdbAutocompleteIndex autocompleteIndex = this.autocompleteIndex;
+        if (autocompleteIndex != null) {
+            statsJson.put("autocompleteIndex", autocompleteIndex.getStatsJson());
+        }
+        ImdbFuzzyIndex fuzzyIndex = this.fuzzyIndex;
+        if (fuzzyIndex != null) {
+            statsJson.put("fuzzyIndex", fuzzyIndex.getStatsJson());
+        }
+        return statsJson;
+    }
+
+    /**
+     * Writes a page of search results as a JSON array to the output stream.
+     *
+     * @param parameters   The parameters of the search.
+     * @param outputStream The output stream.
+     * @return The cursor of the next page, or null if this is the last page.
+     * @throws SQLException If a database error occurs.
+     * @throws IOException  If the output stream can't be written.
+     */
+    public String search(SearchParameters parameters, OutputStream outputStream) throws SQLException, IOException {
+        if (parameters.isFuzzy()) {
+            ImdbFuzzyIndex fuzzyIndex = this.fuzzyIndex;
+            List<String> showIds = fuzzyIndex == null ? null : fuzzyIndex.search(parameters.titleSearch(), MAX_FUZZY_RESULTS);
+            if (showIds != null) {
+                return searchFuzzy(parameters, showIds, outputStream);
+            }
+        }
+
+        int rows;
+        JSONObject lastRow;
+
+        ImdbSearchIndex searchIndex = this.searchIndex;
+        JSONArray indexResultJson = searchIndex == null ? null : searchIndex.search(parameters);
+        if (indexResultJson != null) {
+            outputStream.write(indexResultJson.toString().getBytes(StandardCharsets.UTF_8));
+            rows = indexResultJson.length();
+            lastRow = rows == 0 ? null : indexResultJson.getJSONObject(rows - 1);
+        } else {
+            SearchQuery searchQuery = buildSearchQuery(parameters);
+            Utils.log(searchQuery.query() + " (" + String.join(" | ", searchQuery.values()) + ")");
+
+            ResultSetJsonWriter.Result result = queryAndWriteJson(searchQuery.query(), searchQuery.values(), outputStream);
+            rows = result.rows();
+            lastRow = result.lastRow();
+        }
+
+        if (rows == parameters.pageLimit() && parameters.pageLimit() > 0) {
+            return SearchCursor.of(lastRow, parameters).encode(parameters);
+        }
+        return null;
+    }
+
+    /**
+     * The maximum number of shows that match a fuzzy title search (before the other filters are applied).
+     */
+    private static final int MAX_FUZZY_RESULTS = 500;
+
+    /**
+     * Applies the other filters to the shows found by the fuzzy index and writes the page
+     * in the order of the fuzzy index (title similarity, then votes).
+     * With a cursor, the page starts after the show of the cursor in this order.
+     *
+     * @return The cursor of the next page, or null if this is the last page.
+     */
+    private String searchFuzzy(SearchParameters parameters, List<String> showIds, OutputStream outputStream) throws SQLException, IOException {
+        List<String> conditions = new ArrayList<>();
+        List<String> conditionValues = new ArrayList<>();
+
+        //a single placeholder, so the statement can be cached
+        conditions.add("showId IN (SELECT value FROM json_each(?))");
+        conditionValues.add(new JSONArray(showIds).toString());
+
+        addFilterConditions(parameters, conditions, conditionValues);
+
+        String fuzzyQuery = "SELECT t.*, " + SELECT_GENRES_QUERY + " FROM shows t WHERE " + String.join(" AND ", conditions);
+        Utils.log(fuzzyQuery + " (" + showIds.size() + " shows)");
+        JSONArray showsJson = queryAndConvertToJson(fuzzyQuery, conditionValues);
+
+        Map<String, JSONObject> showsById = new HashMap<>();
+        for (int i = 0; i < showsJson.length(); i++) {
+            JSONObject showJson = showsJson.getJSONObject(i);
+            showsById.put(showJson.getString("showId"), showJson);
+        }
+
+        JSONArray resultJson = new JSONArray();
+        int skip = parameters.offset();
+        boolean afterCursor = parameters.cursor() == null;
+        for (String showId : showIds) {
+            if (resultJson.length() >= parameters.pageLimit()) break;
+            JSONObject showJson = showsById.get(showId);
+            if (showJson == null) continue;
+            if (!afterCursor) {
+                afterCursor = showId.equals(parameters.cursor().id());
+                continue;
+            }
+            if (skip > 0) {
+                skip--;
+                continue;
+            }
+            resultJson.put(showJson);
+        }
+        outputStream.write(resultJson.toString().getBytes(StandardCharsets.UTF_8));
+
+        int rows = resultJson.length();
+        if (rows == parameters.pageLimit() && parameters.pageLimit() > 0) {
+            return SearchCursor.of(resultJson.getJSONObject(rows - 1), parameters).encode(parameters);
+        }
+        return null;
+    }
+
+    /**
+     * Counts all rows that match the filters of a search (ignoring sort, page and cursor) in one aggregated query:
+     * {"total": 1234, "genres": {"Drama": 1000, ...}, "decades": {"1990": 200, ...}, "ratings": {"8": 300, ...}}.
+     * A rating bucket contains the ratings from n to n + 0.9. Rows without a year or rating are only counted in the total.
+     * Genres are only counted if the database has genre masks.
+     *
+     * @param parameters The parameters of the search.
+     * @return The facets.
+     * @throws SQLException If a database error occurs.
+     */
+    public JSONObject getFacets(SearchParameters parameters) throws SQLException {
+        List<String> conditions = new ArrayList<>();
+        List<String> conditionValues = new ArrayList<>();
+
+        ImdbFuzzyIndex fuzzyIndex = this.fuzzyIndex;
+        List<String> fuzzyShowIds = parameters.isFuzzy() && fuzzyIndex != null
+                ? fuzzyIndex.search(parameters.titleSearch(), MAX_FUZZY_RESULTS)
+                : null;
+        if (fuzzyShowIds != null) {
+            conditions.add("showId IN (SELECT value FROM json_each(?))");
+            conditionValues.add(new JSONArray(fuzzyShowIds).toString());
+        } else {
+            addTitleCondition(parameters, conditions, conditionValues);
+        }
+        addFilterConditions(parameters, conditions, conditionValues);
+
+        //one row per (decade, rating bucket) with the genre counts as columns
+
+        JSONArray genreBitsJson = hasTable("genreBits")
+                ? queryAndConvertToJson("SELECT genre, bit FROM genreBits ORDER BY bit")
+                : new JSONArray();
+
+        StringBuilder facetsQueryBuilder = new StringBuilder();
+        facetsQueryBuilder.append("SELECT startYear / 10 * 10 AS decade, CAST(rating AS INTEGER) AS ratingBucket, COUNT(*) AS count");
+        for (int i = 0; i < genreBitsJson.length(); i++) {
+            int bit = genreBitsJson.getJSONObject(i).getInt("bit");
+            facetsQueryBuilder.append(", SUM((genreMask >> ").append(bit).append(") & 1) AS genre").append(bit);
+        }
+        facetsQueryBuilder.append(" FROM ").append(parameters.table()).append(" t");
+        facetsQueryBuilder.append(" WHERE ").append(String.join(" AND ", conditions));
+        facetsQueryBuilder.append(" GROUP BY decade, ratingBucket");
+
+        String facetsQuery = facetsQueryBuilder.toString();
+        Utils.log(facetsQuery + " (" + String.join(" | ", conditionValues) + ")");
+        JSONArray facetRowsJson = queryAndConvertToJson(facetsQuery, conditionValues);
+
+        //sum up the rows
+
+        long total = 0;
+        Map<String, Long> genreCounts = new HashMap<>();
+        Map<String, Long> decadeCounts = new HashMap<>();
+        Map<String, Long> ratingCounts = new HashMap<>();
+        for (int i = 0; i < facetRowsJson.length(); i++) {
+            JSONObject facetRowJson = facetRowsJson.getJSONObject(i);
+            long count = facetRowJson.getLong("count");
+            total += count;
+            if (facetRowJson.has("decade")) {
+                decadeCounts.merge(String.valueOf(facetRowJson.getInt("decade")), count, Long::sum);
+            }
+            if (facetRowJson.has("ratingBucket")) {
+                //10.0 is its own bucket
+                ratingCounts.merge(String.valueOf(facetRowJson.getInt("ratingBucket")), count, Long::sum);
+            }
+            for (int j = 0; j < genreBitsJson.length(); j++) {
+                JSONObject genreBitJson = genreBitsJson.getJSONObject(j);
+                long genreCount = facetRowJson.optLong("genre" + genreBitJson.getInt("bit"));
+                if (genreCount > 0) {
+                    genreCounts.merge(genreBitJson.getString("genre"), genreCount, Long::sum);
+                }
+            }
+        }
+
+        JSONObject facetsJson = new JSONObject();
+        facetsJson.put("total", total);
+        facetsJson.put("genres", new JSONObject(genreCounts));
+        facetsJson.put("decades", new JSONObject(decadeCounts));
+        facetsJson.put("ratings", new JSONObject(ratingCounts));
+        return facetsJson;
+    }
 
-        //genres
+    private record SearchQuery(String query, List<String> values) {
+    }
+
+    private SearchQuery buildSearchQuery(SearchParameters parameters) throws SQLException {
 
-        sqlQueryBuilder.append(", ").append(selectGenresQuery);
+        //the genres of the page are selected by an outer query, so they are only concatenated for the returned rows
+        //(SQLite keeps the order of the inner query)
+
+        StringBuilder sqlQueryBuilder = new StringBuilder();
+        sqlQueryBuilder.append("SELECT t.*, ").append(SELECT_GENRES_QUERY).append(" FROM (SELECT *");
 
         //table
 
-        String[] types = {"shows", "episodes"};
-        String tableName = findElementInArray(types, type);
-        sqlQueryBuilder.append(" FROM ").append(tableName).append(" t");
+        sqlQueryBuilder.append(" FROM ").append(parameters.table()).append(" t");
 
         //conditions
 
         List<String> conditions = new ArrayList<>();
         List<String> conditionValues = new ArrayList<>();
 
-        if (titleSearch != null) {
-            conditions.add("title LIKE ?");
+        addTitleCondition(parameters, conditions, conditionValues);
+        addFilterConditions(parameters, conditions, conditionValues);
+
+        //seek past the cursor
+
+        SearchCursor cursor = parameters.cursor();
+        if (cursor != null) {
+            addCursorCondition(parameters, cursor, conditions, conditionValues);
+        }
+
+        if (!conditions.isEmpty()) {
+            sqlQueryBuilder.append(" WHERE ").append(String.join(" AND ", conditions));
+        }
+
+        //order by
+
+        String finalSortColumn = parameters.sortColumn();
+        String finalSortOrder = parameters.sortOrder();
+        String idColumn = parameters.idColumn();
+        sqlQueryBuilder.append(" ORDER BY ").append(finalSortColumn).append(" ").append(finalSortOrder);
+
+        //always sort by votes (if not already the case) and then by id, so the order is unique for the cursor
+        if (finalSortColumn.equals("votes")) {
+            sqlQueryBuilder.append(", ").append(idColumn).append(" ").append(finalSortOrder);
+        } else {
+            sqlQueryBuilder.append(", votes DESC, ").append(idColumn).append(" DESC");
+        }
+
+        //limit & offset (placeholders, so all pages share one prepared statement)
+
+        sqlQueryBuilder.append(" LIMIT ? OFFSET ?");
+        conditionValues.add(String.valueOf(parameters.pageLimit()));
+        conditionValues.add(String.valueOf(parameters.offset()));
+
+        sqlQueryBuilder.append(") t");
+
+        return new SearchQuery(sqlQueryBuilder.toString(), conditionValues);
+    }
+
+    /**
+     * Runs EXPLAIN QUERY PLAN on representative search queries (every table, sort column and sort order,
+     * with and without filters) and logs the ones that need a temporary sort or a full table scan.
+     *
+     * @return The number of queries with an inefficient query plan.
+     * @throws SQLException If a database error occurs.
+     */
+    public int checkQueryPlans() throws SQLException {
+        List<SearchParameters> representativeParameters = new ArrayList<>();
+        for (String table : SearchParameters.TABLES) {
+            for (String sortColumn : SearchParameters.SORT_COLUMNS) {
+                for (String sortOrder : SearchParameters.SORT_ORDERS) {
+                    representativeParameters.add(SearchParameters.of(table, null, null, null, null, null, null, null, null, null, null, sortColumn, sortOrder, null, null, null, null));
+                    representativeParameters.add(SearchParameters.of(table, null, "1000", null, "8", null, "2000", null, null, null, null, sortColumn, sortOrder, null, null, null, null));
+                }
+            }
+        }
+
+        int inefficientQueries = 0;
+        for (SearchParameters parameters : representativeParameters) {
+            SearchQuery searchQuery = buildSearchQuery(parameters);
+            if (!checkQueryPlan(searchQuery.query(), searchQuery.values())) inefficientQueries++;
+        }
+        if (!checkQueryPlan(SHOW_EPISODES_QUERY, List.of(""))) inefficientQueries++;
+
+        Utils.log("checked query plans of " + (representativeParameters.size() + 1) + " queries, " + inefficientQueries + " inefficient");
+        return inefficientQueries;
+    }
+
+    /**
+     * @return False if the query uses a temporary B-tree for sorting or scans a table without an index.
+     */
+    private boolean checkQueryPlan(String query, List<String> values) throws SQLException {
+        JSONArray queryPlanJson = queryAndConvertToJson("EXPLAIN QUERY PLAN " + query, values);
+        boolean efficient = true;
+        List<String> coroutines = new ArrayList<>();
+        for (int i = 0; i < queryPlanJson.length(); i++) {
+            JSONObject stepJson = queryPlanJson.getJSONObject(i);
+            String detail = stepJson.getString("detail");
+            if (detail.startsWith("CO-ROUTINE ")) {
+                coroutines.add(detail.substring("CO-ROUTINE ".length()));
+            }
+            //the outer query of a search scans the page returned by the inner query (a co-routine)
+            boolean coroutineScan = stepJson.getInt("parent") == 0 && coroutines.contains(detail.substring(detail.indexOf(' ') + 1));
+            boolean fullScan = detail.startsWith("SCAN ") && !detail.contains(" USING ") && !coroutineScan;
+            if (detail.contains("TEMP B-TREE") || fullScan) {
+                Utils.log("inefficient query plan (" + detail + "): " + query);
+                efficient = false;
+            }
+        }
+        return efficient;
+    }
+
+    /**
+     * Adds the condition of the (exact) title search.
+     */
+    private void addTitleCondition(SearchParameters parameters, List<String> conditions, List<String> conditionValues) throws SQLException {
+        if (parameters.titleSearch() != null) {
+            String titleIndex = parameters.table() + "TitleIndex";
+            if (titleSearchCanUseIndex(parameters.titleSearch()) && hasTable(titleIndex)) {
+                //the trigram index evaluates the same LIKE pattern, so the matches are identical
+                String idColumn = parameters.idColumn();
+                conditions.add(idColumn + " IN (SELECT " + idColumn + " FROM " + titleIndex + " WHERE title LIKE ?)");
+            } else {
+                conditions.add("title LIKE ?");
+            }
 
             //replace every non-alphanumeric character (regex \W) with the wildcard %
             //% represents zero, one, or multiple numbers or characters
-            String likeString = "%" + titleSearch.replaceAll("\\W", "%") + "%";
+            String likeString = "%" + parameters.titleSearch().replaceAll("\\W", "%") + "%";
             conditionValues.add(likeString);
         }
+    }
 
+    /**
+     * Adds the conditions of all filters except the title search.
+     */
+    private void addFilterConditions(SearchParameters parameters, List<String> conditions, List<String> conditionValues) throws SQLException {
         conditions.add("votes IS NOT NULL");
 
-        if (minVotes != null) {
+        if (parameters.minVotes() != null) {
             conditions.add("votes >= ?");
-            conditionValues.add(minVotes);
+            conditionValues.add(parameters.minVotes());
         }
 
-        if (maxVotes != null) {
+        if (parameters.maxVotes() != null) {
             conditions.add("votes <= ?");
-            conditionValues.add(maxVotes);
+            conditionValues.add(parameters.maxVotes());
         }
 
-        if (minRating != null) {
+        if (parameters.minRating() != null) {
             conditions.add("rating >= ?");
-            conditionValues.add(minRating);
+            conditionValues.add(parameters.minRating());
         }
 
-        if (maxRating != null) {
+        if (parameters.maxRating() != null) {
             conditions.add("rating <= ?");
-            conditionValues.add(maxRating);
+            conditionValues.add(parameters.maxRating());
         }
 
-        if (minYear != null) {
+        if (parameters.minYear() != null) {
             conditions.add("startYear >= ?");
-            conditionValues.add(minYear);
+            conditionValues.add(parameters.minYear());
         }
 
-        if (maxYear != null) {
+        if (parameters.maxYear() != null) {
             conditions.add("startYear <= ?");
-            conditionValues.add(maxYear);
+            conditionValues.add(parameters.maxYear());
         }
 
-        if (minDuration != null) {
+        if (parameters.minDuration() != null) {
             conditions.add("duration >= ?");
-            conditionValues.add(minDuration);
+            conditionValues.add(parameters.minDuration());
         }
 
-        if (maxDuration != null) {
+        if (parameters.maxDuration() != null) {
             conditions.add("duration <= ?");
-            conditionValues.add(maxDuration);
+            conditionValues.add(parameters.maxDuration());
         }
 
-        if (genres != null) {
-            conditions.add("genres LIKE ?");
-
-            //genres need to be sorted alphabetically for this to work
-            String[] genreArray = genres.split(",");
-            Arrays.sort(genreArray);
-            conditionValues.add("%" + String.join("%", genreArray) + "%");
+        if (parameters.genres() != null) {
+            Long genreMask = getGenreMask(parameters.genres());
+            if (genreMask != null) {
+                conditions.add("(genreMask & CAST(? AS INTEGER)) = CAST(? AS INTEGER)");
+                conditionValues.add(genreMask.toString());
+                conditionValues.add(genreMask.toString());
+            } else {
+                conditions.add(GENRES_QUERY + " LIKE ?");
+
+                //genres need to be sorted alphabetically for this to work
+                String[] genreArray = parameters.genres().split(",");
+                Arrays.sort(genreArray);
+                conditionValues.add("%" + String.join("%", genreArray) + "%");
+            }
         }
+    }
 
-        if (!conditions.isEmpty()) {
-            sqlQueryBuilder.append(" WHERE ").append(String.join(" AND ", conditions));
+    /**
+     * Adds a condition that only matches rows that come after the cursor in the search order.
+     * SQLite sorts NULL before every other value.
+     */
+    private void addCursorCondition(SearchParameters parameters, SearchCursor cursor, List<String> conditions, List<String> conditionValues) {
+        String sortColumn = parameters.sortColumn();
+        String idColumn = parameters.idColumn();
+        String votes = String.valueOf(cursor.votes());
+
+        if (sortColumn.equals("votes")) {
+            String operator = parameters.isAscending() ? ">" : "<";
+            conditions.add("(votes %1$s ? OR (votes = ? AND %2$s %1$s ?))".formatted(operator, idColumn));
+            conditionValues.addAll(List.of(votes, votes, cursor.id()));
+            return;
         }
 
-        //order by
-
-        String[] sortColumns = {"votes", "rating", "startYear", "title"};
-        String finalSortColumn = findElementInArray(sortColumns, sortColumn);
-        sqlQueryBuilder.append(" ORDER BY ").append(finalSortColumn);
+        //rows with the same sort column value: votes DESC, id DESC
+        String tieBreakCondition = "(votes < ? OR (votes = ? AND %s < ?))".formatted(idColumn);
+        List<String> tieBreakValues = List.of(votes, votes, cursor.id());
+
+        if (cursor.value() == null) {
+            if (parameters.isAscending()) {
+                conditions.add("(%1$s IS NOT NULL OR (%1$s IS NULL AND %2$s))".formatted(sortColumn, tieBreakCondition));
+            } else {
+                conditions.add("(%1$s IS NULL AND %2$s)".formatted(sortColumn, tieBreakCondition));
+            }
+            conditionValues.addAll(tieBreakValues);
+        } else {
+            if (parameters.isAscending()) {
+                conditions.add("(%1$s > ? OR (%1$s = ? AND %2$s))".formatted(sortColumn, tieBreakCondition));
+            } else {
+                conditions.add("(%1$s < ? OR %1$s IS NULL OR (%1$s = ? AND %2$s))".formatted(sortColumn, tieBreakCondition));
+            }
+            conditionValues.addAll(List.of(cursor.value(), cursor.value()));
+            conditionValues.addAll(tieBreakValues);
+        }
+    }
 
-        String[] sortOrders = {"DESC", "ASC"};
-        String finalSortOrder = findElementInArray(sortOrders, sortOrder);
-        sqlQueryBuilder.append(" ").append(finalSortOrder);
+    private volatile Map<String, Integer> genreBits;
+
+    /**
+     * @param genres Comma separated genre names (case-insensitive).
+     * @return The bitmask of the genres, or null if the database has no genre masks or a genre is unknown.
+     */
+    private Long getGenreMask(String genres) throws SQLException {
+        if (!hasTable("genreBits")) return null;
+
+        Map<String, Integer> genreBits = this.genreBits;
+        if (genreBits == null) {
+            genreBits = new HashMap<>();
+            JSONArray genreBitsJson = queryAndConvertToJson("SELECT genre, bit FROM genreBits");
+            for (int i = 0; i < genreBitsJson.length(); i++) {
+                JSONObject genreBitJson = genreBitsJson.getJSONObject(i);
+                genreBits.put(genreBitJson.getString("genre").toLowerCase(), genreBitJson.getInt("bit"));
+            }
+            this.genreBits = genreBits;
+        }
 
-        //always sort by votes (if not already the case)
-        if (!finalSortColumn.equals("votes")) {
-            sqlQueryBuilder.append(", votes DESC");
+        long genreMask = 0;
+        for (String genre : genres.split(",")) {
+            Integer bit = genreBits.get(genre.toLowerCase());
+            if (bit == null) return null;
+            genreMask |= 1L << bit;
         }
+        return genreMask;
+    }
 
-        //limit & offset
+    /**
+     * The trigram index can only narrow down a LIKE pattern that contains at least 3 consecutive non-wildcard characters,
+     * otherwise it would scan all of its rows.
+     */
+    private boolean titleSearchCanUseIndex(String titleSearch) {
+        return Arrays.stream(titleSearch.split("[\\W_]+")).anyMatch(part -> part.length() >= 3);
+    }
 
-        Integer finalPageNumber = Utils.stringToIntOrNull(pageNumber);
-        if (finalPageNumber == null || finalPageNumber < 0) {
-            finalPageNumber = 0;
+    private final Map<String, Boolean> existingTables = new ConcurrentHashMap<>();
+
+    /**
+     * Databases created by older versions of the importer don't have all tables.
+     *
+     * @param tableName The name of the table.
+     * @return True if the table exists. The result is cached.
+     */
+    private boolean hasTable(String tableName) throws SQLException {
+        Boolean exists = existingTables.get(tableName);
+        if (exists == null) {
+            exists = tableExists(tableName);
+            existingTables.put(tableName, exists);
         }
+        return exists;
+    }
 
-        int maxPageLimit = 100;
-        Integer finalPageLimit = Utils.stringToIntOrNull(pageLimit);
-        if (finalPageLimit == null || finalPageLimit < 0 || finalPageLimit > maxPageLimit) {
-            finalPageLimit = maxPageLimit;
-        }
+    /**
+     * The columns of a show in the /show response.
+     */
+    static final String SELECT_SHOWS_QUERY = "SELECT *, " + SELECT_GENRES_QUERY + " FROM shows t";
 
-        sqlQueryBuilder.append(" LIMIT ").append(finalPageLimit).append(" OFFSET ").append(finalPageNumber * finalPageLimit);
+    public JSONArray getShow(String showId) throws SQLException {
+        String showQuery = SELECT_SHOWS_QUERY + " WHERE showId = ? ORDER BY votes DESC LIMIT 1";
+        return queryAndConvertToJson(showQuery, List.of(showId));
+    }
 
-        //execute query
+    /**
+     * @return True if the database contains the precomputed /show responses.
+     */
+    public boolean hasShowPayloads() throws SQLException {
+        return hasTable("showPayloads");
+    }
 
-        String query = sqlQueryBuilder.toString();
-        String values = String.join(" | ", conditionValues);
-        Utils.log(query + " (" + values + ")");
+    /**
+     * @param showId The id of the show.
+     * @return The precomputed /show response as UTF-8 JSON, or null if the show doesn't exist.
+     */
+    public byte[] getShowPayload(String showId) throws SQLException {
+        String showPayloadQuery = "SELECT json FROM showPayloads WHERE showId = ?";
+        return queryBytes(showPayloadQuery, List.of(showId));
+    }
 
-        return queryAndConvertToJson(query, conditionValues);
+    /**
+     * @return True if the database contains the precomputed heatmaps.
+     */
+    public boolean hasShowHeatmaps() throws SQLException {
+        return hasTable("showHeatmaps");
     }
 
-    public JSONArray getShow(String showId) throws SQLException {
-        String showQuery = "SELECT *, " + selectGenresQuery + " FROM shows t WHERE showId = ? ORDER BY votes DESC LIMIT 1";
-        return queryAndConvertToJson(showQuery, List.of(showId));
+    /**
+     * @param showId The id of the show.
+     * @param titles True if the heatmap should include the episode ids and titles.
+     * @return The precomputed {@link ShowHeatmap} as UTF-8 JSON, or null if the show doesn't exist.
+     */
+    public byte[] getShowHeatmap(String showId, boolean titles) throws SQLException {
+        String showHeatmapQuery = titles
+                ? "SELECT jsonWithTitles FROM showHeatmaps WHERE showId = ?"
+                : "SELECT json FROM showHeatmaps WHERE showId = ?";
+        return queryBytes(showHeatmapQuery, List.of(showId));
     }
 
+    static final String SHOW_EPISODES_QUERY = "SELECT * FROM episodes WHERE showId = ? ORDER BY season, episode";
+
     public JSONArray getShowEpisodes(String showId) throws SQLException {
-        String episodesQuery = "SELECT * FROM episodes WHERE showId = ? ORDER BY season, episode";
-        return queryAndConvertToJson(episodesQuery, List.of(showId));
+        return queryAndConvertToJson(SHOW_EPISODES_QUERY, List.of(showId));
+    }
+
+    /**
+     * Like {@link #getShowEpisodes}, but writes the episodes directly to the output stream.
+     */
+    public void writeShowEpisodes(String showId, OutputStream outputStream) throws SQLException, IOException {
+        queryAndWriteJson(SHOW_EPISODES_QUERY, List.of(showId), outputStream);
+    }
+
+    /**
+     * Writes the /show response of a show: {"show":{...},"episodes":[...]}.
+     *
+     * @param showId       The id of the show.
+     * @param outputStream The output stream.
+     * @return False if the show doesn't exist.
+     */
+    public boolean writeShow(String showId, OutputStream outputStream) throws SQLException, IOException {
+        JSONArray showJson = getShow(showId);
+        if (showJson.isEmpty()) return false;
+
+        ByteArrayOutputStream episodesOutputStream = new ByteArrayOutputStream();
+        writeShowEpisodes(showId, episodesOutputStream);
+        writeShowResponse(showJson.getJSONObject(0), episodesOutputStream.toByteArray(), outputStream);
+        return true;
+    }
+
+    /**
+     * Writes a /show response. The showPayloads table of {@link ImdbDatasetsImporter} is built with it as well,
+     * so the precomputed responses have the same bytes as the live ones.
+     *
+     * @param showJson     The show, converted like the query results.
+     * @param episodesJson The episodes, written by {@link ResultSetJsonWriter}.
+     * @param outputStream The output stream.
+     */
+    static void writeShowResponse(JSONObject showJson, byte[] episodesJson, OutputStream outputStream) throws IOException {
+        outputStream.write(("{\"show\":" + showJson + ",\"episodes\":").getBytes(StandardCharsets.UTF_8));
+        outputStream.write(episodesJson);
+        outputStream.write('}');
+    }
+
+    /**
+     * @param showIds The ids of the shows.
+     * @return The shows that exist, in no particular order.
+     */
+    public JSONArray getShows(List<String> showIds) throws SQLException {
+        String showsQuery = SELECT_SHOWS_QUERY + " WHERE showId IN (" + placeholders(showIds.size()) + ")";
+        return queryAndConvertToJson(showsQuery, showIds);
+    }
+
+    /**
+     * Writes the /shows response: the shows that exist as an array in the order of the ids.
+     * With episodes, every element is the /show response of the show ({@link #writeShow}),
+     * so the precomputed and the live responses have the same bytes. Without episodes, an element is {"show":{...}}.
+     *
+     * @param showIds      The ids of the shows.
+     * @param episodes     True if the shows should contain their episodes.
+     * @param outputStream The output stream.
+     */
+    public void writeShows(List<String> showIds, boolean episodes, OutputStream outputStream) throws SQLException, IOException {
+        outputStream.write('[');
+        boolean first = true;
+
+        //precomputed during the import
+        if (episodes && hasShowPayloads()) {
+            Map<String, byte[]> showPayloads = getShowPayloads(showIds);
+            for (String showId : showIds) {
+                byte[] showPayload = showPayloads.get(showId);
+                if (showPayload == null) continue;
+                if (!first) outputStream.write(',');
+                first = false;
+                outputStream.write(showPayload);
+            }
+            outputStream.write(']');
+            return;
+        }
+
+        if (episodes) {
+            ByteArrayOutputStream showOutputStream = new ByteArrayOutputStream();
+            for (String showId : showIds) {
+                showOutputStream.reset();
+                if (!writeShow(showId, showOutputStream)) continue;
+                if (!first) outputStream.write(',');
+                first = false;
+                showOutputStream.writeTo(outputStream);
+            }
+            outputStream.write(']');
+            return;
+        }
+
+        Map<String, JSONObject> showsById = new HashMap<>();
+        JSONArray showsJson = getShows(showIds);
+        for (int i = 0; i < showsJson.length(); i++) {
+            JSONObject showJson = showsJson.getJSONObject(i);
+            showsById.put(showJson.getString("showId"), showJson);
+        }
+        for (String showId : showIds) {
+            JSONObject showJson = showsById.get(showId);
+            if (showJson == null) continue;
+            if (!first) outputStream.write(',');
+            first = false;
+            outputStream.write(("{\"show\":" + showJson + "}").getBytes(StandardCharsets.UTF_8));
+        }
+        outputStream.write(']');
+    }
+
+    /**
+     * @param showIds The ids of the shows.
+     * @return The precomputed /show responses as UTF-8 JSON by show id. Shows that don't exist are missing.
+     */
+    public Map<String, byte[]> getShowPayloads(List<String> showIds) throws SQLException {
+        String showPayloadsQuery = "SELECT showId, json FROM showPayloads WHERE showId IN (" + placeholders(showIds.size()) + ")";
+        return withReadStatement(showPayloadsQuery, showIds, statement -> {
+            Map<String, byte[]> showPayloads = new HashMap<>();
+            try (ResultSet resultSet = statement.executeQuery();) {
+                while (resultSet.next()) {
+                    showPayloads.put(resultSet.getString(1), resultSet.getBytes(2));
+                }
+            }
+            return showPayloads;
+        });
     }
 
-    public JSONArray getGenres() throws SQLException {
-        String genresQuery = "SELECT DISTINCT genre FROM genres ORDER BY genre";
-        return queryAndConvertToJson(genresQuery);
+    /**
+     * @return ?, ?, ?, ...
+     */
+    private String placeholders(int count) {
+        return String.join(", ", Collections.nCopies(count, "?"));
     }
 
-    private String findElementInArray(String[] array, String element) {
-        return Arrays.stream(array).filter(e -> e.equalsIgnoreCase(element)).findFirst().orElse(array[0]);
+    /**
+     * @return The genres and, if the database has genre masks, the bit of each genre in the masks.
+     */
+    public void writeGenres(OutputStream outputStream) throws SQLException, IOException {
+        if (hasTable("genreBits")) {
+            String genreBitsQuery = "SELECT genre, bit FROM genreBits ORDER BY genre";
+            queryAndWriteJson(genreBitsQuery, List.of(), outputStream);
+            return;
+        }
+        String distinctGenresQuery = "SELECT DISTINCT genre FROM genres ORDER BY genre";
+        queryAndWriteJson(distinctGenresQuery, List.of(), outputStream);
     }
 
 }
\ No newline at end of file
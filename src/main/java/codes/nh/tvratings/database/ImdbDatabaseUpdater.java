@@ -4,6 +4,8 @@ import codes.nh.tvratings.configuration.Configuration;
 import codes.nh.tvratings.utils.Utils;
 
 import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.sql.SQLException;
 import java.util.Arrays;
 import java.util.Comparator;
@@ -14,9 +16,17 @@ public class ImdbDatabaseUpdater {
 
     private final File imdbDatabaseDirectory;
 
+    /**
+     * The file of the database that is currently served, the base of incremental updates.
+     */
+    private volatile File currentImdbDatabaseFile;
+
+    private final ImdbDatasetsDownloader datasetsDownloader;
+
     public ImdbDatabaseUpdater(Configuration configuration) {
         this.configuration = configuration;
         this.imdbDatabaseDirectory = new File(configuration.databaseDirectory, "imdb");
+        this.datasetsDownloader = new ImdbDatasetsDownloader(configuration);
     }
 
     private File getOldImdbDatabaseFile() {
@@ -52,15 +62,14 @@ public class ImdbDatabaseUpdater {
         ImdbDatabase imdbDatabase;
         if (oldImdbDatabaseFile == null) {
             Utils.log("no databases -> download first and then start server");
+            currentImdbDatabaseFile = newImdbDatabaseFile;
 
-            imdbDatabase = new ImdbDatabase(newImdbDatabaseFile.getPath());
-            imdbDatabase.connect();
-
-            ImdbDatasetsImporter datasetsImporter = new ImdbDatasetsImporter(imdbDatabase.getConnection());
-            datasetsImporter.start();
+            imdbDatabase = importImdbDatabase(newImdbDatabaseFile);
+            datasetsDownloader.markImported(ImdbDatasetsImporter.DATASETS);
 
         } else if (!oldImdbDatabaseFile.getName().equals(newImdbDatabaseFile.getName())) {
             Utils.log("database is not uptodate -> start server and download in background");
+            currentImdbDatabaseFile = oldImdbDatabaseFile;
 
             imdbDatabase = new ImdbDatabase(oldImdbDatabaseFile.getPath());
             imdbDatabase.connect();
@@ -75,12 +84,15 @@ public class ImdbDatabaseUpdater {
 
         } else {
             Utils.log("database is uptodate -> start server");
+            currentImdbDatabaseFile = newImdbDatabaseFile;
 
             imdbDatabase = new ImdbDatabase(newImdbDatabaseFile.getPath());
             imdbDatabase.connect();
 
         }
 
+        prepareImdbDatabase(imdbDatabase);
+
         if (configuration.updateDatabase) {
             startDailyUpdater();
         }
@@ -88,6 +100,26 @@ public class ImdbDatabaseUpdater {
         return imdbDatabase;
     }
 
+    /**
+     * Prepares a connected and fully imported IMDb database before it is served.
+     *
+     * @param imdbDatabase The IMDb database.
+     */
+    private void prepareImdbDatabase(ImdbDatabase imdbDatabase) throws Exception {
+        if (configuration.imdbDatabaseConnections > 0) {
+            imdbDatabase.openReadConnectionPool(configuration.imdbDatabaseConnections, ImdbDatabase.MMAP_SIZE);
+        }
+
+        imdbDatabase.checkQueryPlans();
+
+        if (configuration.inMemorySearch) {
+            imdbDatabase.loadSearchIndex();
+        }
+
+        imdbDatabase.loadAutocompleteIndex();
+        imdbDatabase.loadFuzzyIndex();
+    }
+
     private void startDailyUpdater() {
         long dayMs = 24 * 60 * 60 * 1000;
         long msUntilNextUtcDay = dayMs - System.currentTimeMillis() % dayMs;
@@ -104,23 +136,143 @@ public class ImdbDatabaseUpdater {
 
     private void updateDatabase(File newImdbDatabaseFile) {
         try {
+            if (!datasetsDownloader.hasChanges(ImdbDatasetsImporter.DATASETS)) {
+                Utils.log("datasets are unchanged since the last import -> keep database");
+                return;
+            }
+
             Utils.log("updating database..");
 
-            ImdbDatabase newImdbDatabase = new ImdbDatabase(newImdbDatabaseFile.getPath());
-            newImdbDatabase.connect();
+            ImdbDatabase newImdbDatabase = configuration.incrementalUpdate ?
+                    updateDatabaseIncrementally(newImdbDatabaseFile) :
+                    null;
 
-            ImdbDatasetsImporter datasetsImporter = new ImdbDatasetsImporter(newImdbDatabase.getConnection());
-            datasetsImporter.start();
+            if (newImdbDatabase == null) {
+                newImdbDatabase = importImdbDatabase(newImdbDatabaseFile);
+            }
 
             Utils.log("finished updating database");
 
+            try {
+                prepareImdbDatabase(newImdbDatabase);
+            } catch (Exception e) {
+                deleteImdbDatabase(newImdbDatabase, newImdbDatabaseFile);
+                throw e;
+            }
+
             databaseUpdateListener.onUpdate(newImdbDatabase);
+            currentImdbDatabaseFile = newImdbDatabaseFile;
+            datasetsDownloader.markImported(ImdbDatasetsImporter.DATASETS);
 
         } catch (Exception e) {
             Utils.log("error while updating imdb database: " + e.getMessage());
         }
     }
 
+    /**
+     * Imports the datasets into a new database file. If {@link Configuration#importInMemory} is enabled,
+     * the import runs in an in-memory database that is written to the file at the end,
+     * so the disk only sees one sequential write instead of the random I/O of building the tables and indices.
+     * The import is written to a temporary file that is only renamed to the new database file when it succeeded,
+     * because a half imported database (without journal) must not be served or picked up after a restart.
+     *
+     * @param imdbDatabaseFile The file of the new database.
+     * @return The connected database.
+     */
+    private ImdbDatabase importImdbDatabase(File imdbDatabaseFile) throws Exception {
+        Utils.resetPeakMemoryUsage();
+
+        File temporaryFile = new File(imdbDatabaseFile.getPath() + ".tmp");
+        Files.deleteIfExists(temporaryFile.toPath());
+        try {
+            if (configuration.importInMemory) {
+                ImdbDatabase memoryImdbDatabase = new ImdbDatabase(":memory:");
+                memoryImdbDatabase.connect();
+                try {
+                    ImdbDatasetsImporter datasetsImporter = new ImdbDatasetsImporter(memoryImdbDatabase.getConnection(), configuration, datasetsDownloader);
+                    datasetsImporter.start();
+                    datasetsImporter.vacuumInto(temporaryFile);
+                } finally {
+                    memoryImdbDatabase.disconnect();
+                }
+            } else {
+                ImdbDatabase temporaryImdbDatabase = new ImdbDatabase(temporaryFile.getPath());
+                temporaryImdbDatabase.connect();
+                try {
+                    ImdbDatasetsImporter datasetsImporter = new ImdbDatasetsImporter(temporaryImdbDatabase.getConnection(), configuration, datasetsDownloader);
+                    datasetsImporter.start();
+                } finally {
+                    temporaryImdbDatabase.disconnect();
+                }
+            }
+            Files.move(temporaryFile.toPath(), imdbDatabaseFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (Exception e) {
+            Files.deleteIfExists(temporaryFile.toPath());
+            throw e;
+        }
+
+        Utils.log("import memory usage: " + Utils.getPeakMemoryString());
+
+        ImdbDatabase imdbDatabase = new ImdbDatabase(imdbDatabaseFile.getPath());
+        imdbDatabase.connect();
+        return imdbDatabase;
+    }
+
+    /**
+     * Copies the current database and applies the differences to the new datasets.
+     *
+     * @param newImdbDatabaseFile The file of the new database.
+     * @return The updated database, or null if the current database can't be updated incrementally
+     * or the update failed (then the copy is deleted).
+     */
+    private ImdbDatabase updateDatabaseIncrementally(File newImdbDatabaseFile) throws Exception {
+        File baseImdbDatabaseFile = currentImdbDatabaseFile;
+        if (baseImdbDatabaseFile == null || baseImdbDatabaseFile.equals(newImdbDatabaseFile)) return null;
+
+        //the served database is read-only, so the copy is consistent
+        Utils.log("copying " + baseImdbDatabaseFile.getName() + " to " + newImdbDatabaseFile.getName() + "..");
+        Files.copy(baseImdbDatabaseFile.toPath(), newImdbDatabaseFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        ImdbDatabase newImdbDatabase = new ImdbDatabase(newImdbDatabaseFile.getPath());
+        newImdbDatabase.connect();
+
+        ImdbDatasetsImporter datasetsImporter = new ImdbDatasetsImporter(newImdbDatabase.getConnection(), configuration, datasetsDownloader);
+        if (!datasetsImporter.canUpdateIncrementally()) {
+            Utils.log(baseImdbDatabaseFile.getName() + " can't be updated incrementally -> full import");
+            newImdbDatabase.disconnect();
+            Files.delete(newImdbDatabaseFile.toPath());
+            return null;
+        }
+
+        Utils.resetPeakMemoryUsage();
+        try {
+            datasetsImporter.startIncremental();
+        } catch (Exception e) {
+            //the copy is half updated, so it must not be served (or picked up as the newest database after a restart)
+            Utils.log("error while updating " + newImdbDatabaseFile.getName() + " incrementally: " + e.getMessage() + " -> full import");
+            deleteImdbDatabase(newImdbDatabase, newImdbDatabaseFile);
+            return null;
+        }
+        Utils.log("import memory usage: " + Utils.getPeakMemoryString());
+
+        return newImdbDatabase;
+    }
+
+    /**
+     * Disconnects from and deletes a new database that won't be served,
+     * so it isn't picked up as the newest database after a restart.
+     *
+     * @param imdbDatabase     The connected database.
+     * @param imdbDatabaseFile The file of the database.
+     */
+    private void deleteImdbDatabase(ImdbDatabase imdbDatabase, File imdbDatabaseFile) throws Exception {
+        try {
+            imdbDatabase.disconnect();
+        } finally {
+            Files.deleteIfExists(imdbDatabaseFile.toPath());
+        }
+    }
+
     //listener
 
     private Listener databaseUpdateListener = (newImdbDatabase) -> {
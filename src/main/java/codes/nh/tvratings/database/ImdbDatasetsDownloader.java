@@ -0,0 +1,428 @@
+package codes.nh.tvratings.database;
+
+import codes.nh.tvratings.configuration.Configuration;
+import codes.nh.tvratings.utils.Utils;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Downloads the IMDb datasets with conditional and resumable HTTP requests.
+ * If the cache is enabled, every dataset is written to the cache directory while it is read,
+ * together with a sidecar file of its ETag and Last-Modified header:<br>
+ * - A cached dataset is only downloaded again if the server has a newer version (If-None-Match, If-Modified-Since).<br>
+ * - A dropped connection is resumed where it stopped (Range, If-Range), also by the next import if the process stopped.<br>
+ * Without the cache, dropped connections are still resumed during the download.
+ * One instance has to own the cache directory, because the metadata is only synchronized per instance.
+ */
+public class ImdbDatasetsDownloader {
+
+    /**
+     * The maximum number of resumed connections per dataset.
+     */
+    private static final int MAX_RESUMES = 5;
+
+    private static final int CONNECT_TIMEOUT_MS = 30_000;
+
+    private static final int READ_TIMEOUT_MS = 60_000;
+
+    private final String baseUrl;
+
+    /**
+     * The cache directory, or null if the cache is disabled.
+     */
+    private final File cacheDirectory;
+
+    public ImdbDatasetsDownloader(Configuration configuration) {
+        this.baseUrl = configuration.imdbDatasetsUrl;
+        this.cacheDirectory = configuration.imdbDatasetsCache ? new File(configuration.databaseDirectory, "datasets") : null;
+    }
+
+    //metadata
+
+    /**
+     * The sidecar file of a dataset.
+     *
+     * @param etag         The ETag of the dataset or null.
+     * @param lastModified The Last-Modified header of the dataset or null.
+     * @param length       The length of the dataset in bytes, or -1 if unknown.
+     * @param complete     True if the cached file is complete, otherwise the ".part" file is a partial download.
+     * @param imported     True if a database was successfully imported from the cached file.
+     */
+    private record Metadata(String etag, String lastModified, long length, boolean complete, boolean imported) {
+
+        private boolean hasValidator() {
+            return etag != null || lastModified != null;
+        }
+
+        /**
+         * @return The validator for If-Range (ETag is preferred).
+         */
+        private String validator() {
+            return etag != null ? etag : lastModified;
+        }
+
+        private JSONObject toJson() {
+            JSONObject metadataJson = new JSONObject();
+            metadataJson.put("etag", etag);
+            metadataJson.put("lastModified", lastModified);
+            metadataJson.put("length", length);
+            metadataJson.put("complete", complete);
+            metadataJson.put("imported", imported);
+            return metadataJson;
+        }
+
+        private static Metadata of(JSONObject metadataJson) {
+            return new Metadata(
+                    metadataJson.optString("etag", null),
+                    metadataJson.optString("lastModified", null),
+                    metadataJson.optLong("length", -1),
+                    metadataJson.optBoolean("complete", false),
+                    metadataJson.optBoolean("imported", false)
+            );
+        }
+
+    }
+
+    private File getCacheFile(String datasetName) {
+        return new File(cacheDirectory, datasetName);
+    }
+
+    private File getPartFile(String datasetName) {
+        return new File(cacheDirectory, datasetName + ".part");
+    }
+
+    private File getMetadataFile(String datasetName) {
+        return new File(cacheDirectory, datasetName + ".json");
+    }
+
+    /**
+     * @return The metadata of the dataset, or null if there is none.
+     */
+    private Metadata readMetadata(String datasetName) {
+        File metadataFile = getMetadataFile(datasetName);
+        if (!metadataFile.exists()) return null;
+        try {
+            return Metadata.of(new JSONObject(Files.readString(metadataFile.toPath())));
+        } catch (Exception e) {
+            Utils.log("invalid metadata of " + datasetName + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private synchronized void writeMetadata(String datasetName, Metadata metadata) throws IOException {
+        cacheDirectory.mkdirs();
+        File metadataFile = getMetadataFile(datasetName);
+        File temporaryFile = new File(cacheDirectory, metadataFile.getName() + ".tmp");
+        Files.writeString(temporaryFile.toPath(), metadata.toJson().toString(), StandardCharsets.UTF_8);
+        Files.move(temporaryFile.toPath(), metadataFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @return The metadata if the cached file of the dataset is complete, otherwise null.
+     */
+    private Metadata getCompleteMetadata(String datasetName) {
+        if (cacheDirectory == null) return null;
+        Metadata metadata = readMetadata(datasetName);
+        if (metadata == null || !metadata.complete() || !metadata.hasValidator() || !getCacheFile(datasetName).exists()) return null;
+        return metadata;
+    }
+
+    //requests
+
+    private HttpURLConnection openConnection(String datasetName, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + datasetName).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        //the length of the compressed file
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        return connection;
+    }
+
+    private static void setConditionalHeaders(HttpURLConnection connection, Metadata metadata) {
+        if (metadata.etag() != null) connection.setRequestProperty("If-None-Match", metadata.etag());
+        if (metadata.lastModified() != null) connection.setRequestProperty("If-Modified-Since", metadata.lastModified());
+    }
+
+    /**
+     * Asks the server (HEAD with If-None-Match and If-Modified-Since) if any dataset changed since the last successful import.
+     *
+     * @param datasetNames The names of the datasets.
+     * @return False if every dataset was imported from the cache and the server has no newer version.
+     */
+    public boolean hasChanges(String[] datasetNames) {
+        if (cacheDirectory == null) return true;
+        for (String datasetName : datasetNames) {
+            Metadata metadata = getCompleteMetadata(datasetName);
+            if (metadata == null || !metadata.imported()) return true;
+            try {
+                HttpURLConnection connection = openConnection(datasetName, "HEAD");
+                setConditionalHeaders(connection, metadata);
+                int responseCode = connection.getResponseCode();
+                connection.disconnect();
+                if (responseCode != HttpURLConnection.HTTP_NOT_MODIFIED) return true;
+            } catch (IOException e) {
+                Utils.log("error while checking " + datasetName + " for changes: " + e.getMessage());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Marks the complete cached datasets as imported, after the database was imported successfully.
+     *
+     * @param datasetNames The names of the datasets.
+     */
+    public void markImported(String[] datasetNames) {
+        if (cacheDirectory == null) return;
+        for (String datasetName : datasetNames) {
+            Metadata metadata = getCompleteMetadata(datasetName);
+            if (metadata == null || metadata.imported()) continue;
+            try {
+                writeMetadata(datasetName, new Metadata(metadata.etag(), metadata.lastModified(), metadata.length(), true, true));
+            } catch (IOException e) {
+                Utils.log("error while writing metadata of " + datasetName + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Completes a partial download that already has all bytes of the dataset
+     * (e.g. if the process stopped before the download was finished), because it can't be resumed.
+     *
+     * @param datasetName The name of the dataset.
+     * @return The metadata of the now complete cached file, or null if there is no such partial download.
+     */
+    private Metadata completePartFile(String datasetName) throws IOException {
+        if (cacheDirectory == null) return null;
+        Metadata metadata = readMetadata(datasetName);
+        File partFile = getPartFile(datasetName);
+        if (metadata == null || metadata.complete() || !metadata.hasValidator() || metadata.length() == -1
+                || !partFile.exists() || partFile.length() != metadata.length()) return null;
+
+        Utils.log("partial download of " + datasetName + " is complete -> moving it to the cache");
+        Files.move(partFile.toPath(), getCacheFile(datasetName).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Metadata completeMetadata = new Metadata(metadata.etag(), metadata.lastModified(), metadata.length(), true, false);
+        writeMetadata(datasetName, completeMetadata);
+        return completeMetadata;
+    }
+
+    /**
+     * Opens a (compressed) dataset. If the cached file is up to date, it is read from the cache,
+     * otherwise it is downloaded (or a partial download is resumed) and cached while it is read.
+     *
+     * @param datasetName The name of the dataset.
+     * @return The stream of the dataset.
+     * @throws IOException If the dataset can't be downloaded.
+     */
+    public InputStream open(String datasetName) throws IOException {
+        HttpURLConnection connection = openConnection(datasetName, "GET");
+
+        Metadata completeMetadata = getCompleteMetadata(datasetName);
+        if (completeMetadata == null) completeMetadata = completePartFile(datasetName);
+        Metadata partMetadata = null;
+        long partLength = 0;
+        if (completeMetadata != null) {
+            setConditionalHeaders(connection, completeMetadata);
+        } else if (cacheDirectory != null) {
+            Metadata metadata = readMetadata(datasetName);
+            File partFile = getPartFile(datasetName);
+            if (metadata != null && !metadata.complete() && metadata.hasValidator() && partFile.exists() && partFile.length() > 0) {
+                partMetadata = metadata;
+                partLength = partFile.length();
+                connection.setRequestProperty("Range", "bytes=" + partLength + "-");
+                connection.setRequestProperty("If-Range", metadata.validator());
+            }
+        }
+
+        int responseCode = connection.getResponseCode();
+        if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && completeMetadata != null) {
+            connection.disconnect();
+            File cacheFile = getCacheFile(datasetName);
+            Utils.log(datasetName + " is unchanged -> reading " + cacheFile.length() / 1024 / 1024 + " MB from the cache");
+            return new FileInputStream(cacheFile);
+        }
+
+        if (responseCode == HttpURLConnection.HTTP_PARTIAL && partMetadata != null) {
+            Utils.log("resuming " + datasetName + " at " + partLength / 1024 / 1024 + " MB");
+            return new DownloadStream(datasetName, connection, partMetadata, partLength);
+        }
+
+        if (responseCode != HttpURLConnection.HTTP_OK) {
+            connection.disconnect();
+            throw new IOException("unexpected response " + responseCode + " for " + datasetName);
+        }
+
+        Metadata metadata = new Metadata(
+                connection.getHeaderField("ETag"),
+                connection.getHeaderField("Last-Modified"),
+                connection.getContentLengthLong(),
+                false,
+                false
+        );
+        if (cacheDirectory != null) writeMetadata(datasetName, metadata);
+        return new DownloadStream(datasetName, connection, metadata, 0);
+    }
+
+    /**
+     * The bytes of a dataset: first the partial download in the cache, then the response.
+     * The response is appended to the partial download. If the connection drops, the download is resumed
+     * at the current position (if the dataset didn't change).
+     * When all bytes were read, the partial download becomes the cached file.
+     */
+    private class DownloadStream extends InputStream {
+
+        private final String datasetName;
+
+        private final Metadata metadata;
+
+        private HttpURLConnection connection;
+
+        private InputStream responseStream;
+
+        /**
+         * The partial download (null if the cache is disabled) and the number of its bytes that weren't read yet.
+         */
+        private InputStream partStream;
+
+        private long remainingPartBytes;
+
+        private final OutputStream partOutputStream;
+
+        /**
+         * The number of read bytes.
+         */
+        private long position = 0;
+
+        private long downloadedBytes = 0;
+
+        private int resumes = 0;
+
+        private boolean finished = false;
+
+        private DownloadStream(String datasetName, HttpURLConnection connection, Metadata metadata, long partLength) throws IOException {
+            this.datasetName = datasetName;
+            this.metadata = metadata;
+            this.connection = connection;
+            this.responseStream = connection.getInputStream();
+            if (cacheDirectory != null) {
+                File partFile = getPartFile(datasetName);
+                this.partStream = partLength > 0 ? new FileInputStream(partFile) : null;
+                this.remainingPartBytes = partLength;
+                this.partOutputStream = new FileOutputStream(partFile, partLength > 0);
+            } else {
+                this.partOutputStream = null;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int read = read(b, 0, 1);
+            return read == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) return 0;
+
+            //partial download
+            if (remainingPartBytes > 0) {
+                int read = partStream.read(buffer, offset, (int) Math.min(length, remainingPartBytes));
+                if (read == -1) throw new IOException("partial download of " + datasetName + " is shorter than expected");
+                remainingPartBytes -= read;
+                position += read;
+                return read;
+            }
+
+            //response
+            while (true) {
+                int read;
+                try {
+                    read = responseStream.read(buffer, offset, length);
+                } catch (IOException e) {
+                    resume(e);
+                    continue;
+                }
+
+                if (read == -1) {
+                    //the connection was closed before the end
+                    if (metadata.length() != -1 && position < metadata.length()) {
+                        resume(new IOException("connection closed at " + position + " of " + metadata.length() + " bytes"));
+                        continue;
+                    }
+                    finish();
+                    return -1;
+                }
+
+                if (partOutputStream != null) partOutputStream.write(buffer, offset, read);
+                position += read;
+                downloadedBytes += read;
+                //the reader (e.g. GZIPInputStream) may stop at the end of the data without waiting for the end of the stream
+                if (position == metadata.length()) finish();
+                return read;
+            }
+        }
+
+        /**
+         * Requests the rest of the dataset from the current position.
+         *
+         * @param cause The reason why the connection was lost.
+         */
+        private void resume(IOException cause) throws IOException {
+            connection.disconnect();
+            if (++resumes > MAX_RESUMES || !metadata.hasValidator()) throw cause;
+            Utils.log("resuming " + datasetName + " at " + position / 1024 / 1024 + " MB (" + cause.getMessage() + ")");
+
+            connection = openConnection(datasetName, "GET");
+            connection.setRequestProperty("Range", "bytes=" + position + "-");
+            connection.setRequestProperty("If-Range", metadata.validator());
+
+            int responseCode = connection.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
+                connection.disconnect();
+                //200: the dataset changed and was sent from the beginning
+                throw new IOException("can't resume " + datasetName + " (response " + responseCode + ")", cause);
+            }
+            responseStream = connection.getInputStream();
+        }
+
+        private void finish() throws IOException {
+            if (finished) return;
+            finished = true;
+            Utils.log("downloaded " + downloadedBytes / 1024 / 1024 + " MB of " + datasetName + " (" + resumes + " resumes)");
+
+            if (partOutputStream == null) return;
+            partOutputStream.close();
+            Files.move(getPartFile(datasetName).toPath(), getCacheFile(datasetName).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            writeMetadata(datasetName, new Metadata(metadata.etag(), metadata.lastModified(), position, true, false));
+        }
+
+        /**
+         * An unfinished download is kept as partial download, so the next import can resume it.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                if (partStream != null) partStream.close();
+                if (partOutputStream != null) partOutputStream.close();
+            } finally {
+                connection.disconnect();
+            }
+        }
+
+    }
+
+}
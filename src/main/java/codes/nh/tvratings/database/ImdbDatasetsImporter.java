@@ -1,23 +1,38 @@
 package codes.nh.tvratings.database;
 
+import codes.nh.tvratings.configuration.Configuration;
 import codes.nh.tvratings.utils.Utils;
+import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URL;
+import java.io.InterruptedIOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.stream.IntStream;
 import java.util.zip.GZIPInputStream;
 
 /**
@@ -27,147 +42,932 @@ public class ImdbDatasetsImporter {
 
     private final Connection databaseConnection;
 
-    public ImdbDatasetsImporter(Connection databaseConnection) {
+    private final ImdbDatasetsDownloader downloader;
+
+    private final int downloadThreads;
+
+    private final int batchSize;
+
+    private final boolean projection;
+
+    /**
+     * @param databaseConnection The connection to the database that is imported into.
+     * @param configuration      The configuration.
+     * @param downloader         The downloader that owns the dataset cache.
+     */
+    public ImdbDatasetsImporter(Connection databaseConnection, Configuration configuration, ImdbDatasetsDownloader downloader) {
         this.databaseConnection = databaseConnection;
+        this.downloader = downloader;
+        this.downloadThreads = configuration.imdbDatasetsDownloadThreads;
+        this.batchSize = Math.max(1, configuration.imdbDatasetsBatchSize);
+        this.projection = configuration.imdbDatasetsProjection;
     }
 
-    private final String baseUrl = "https://datasets.imdbws.com/";
+    private static final String BASICS_DATASET = "title.basics.tsv.gz";
+
+    private static final String EPISODE_DATASET = "title.episode.tsv.gz";
+
+    private static final String RATINGS_DATASET = "title.ratings.tsv.gz";
 
     /**
      * See https://developer.imdb.com/non-commercial-datasets/ and https://datasets.imdbws.com/.
      */
-    private final String[] datasets = {
-            "title.basics.tsv.gz",
-            "title.episode.tsv.gz",
-            "title.ratings.tsv.gz",
+    public static final String[] DATASETS = {
+            BASICS_DATASET,
+            EPISODE_DATASET,
+            RATINGS_DATASET,
     };
 
     /**
      * Starts the import process.
      */
-    public void start() throws IOException, SQLException {
+    public void start() throws Exception {
         long startTime = System.currentTimeMillis();
         Utils.log("ImdbDatasetsImporter started");
 
-        for (String dataset : datasets) {
-            File datasetFile = downloadDataset(dataset);
-            importDataset(datasetFile);
-            Files.deleteIfExists(datasetFile.toPath());
+        setImportPragmas(false);
+        if (projection) {
+            importProjectedDatasets("shows", "episodes");
+        } else {
+            importDatasets();
+            createTablesFromDatasets();
         }
         optimizeTables();
+        resetPragmas();
 
         long time = System.currentTimeMillis() - startTime;
         Utils.log("ImdbDatasetsImporter finished in " + time + " ms");
     }
 
     /**
-     * Downloads a dataset from IMDb and unzips it.
+     * Writes the imported database (e.g. an in-memory database) to a new file.
+     * VACUUM INTO writes the pages sequentially and without free pages, so the file is compact and defragmented.
      *
-     * @param datasetName The name of the dataset. Has to be one of {@link #datasets}.
-     * @return The downloaded, unzipped dataset file.
+     * @param file The new database file, it is replaced if it exists.
      */
-    private File downloadDataset(String datasetName) throws IOException {
+    public void vacuumInto(File file) throws SQLException, IOException {
         long startTime = System.currentTimeMillis();
-        Utils.log("downloading " + datasetName + "..");
+        Utils.log("writing database to " + file.getName() + "..");
 
-        URL url = new URL(baseUrl + datasetName);
-        String outputFileName = datasetName.replace(".gz", "");
-        File outputFile = new File(outputFileName);
-        try (InputStream inputStream = url.openStream();
-             GZIPInputStream gzipInputStream = new GZIPInputStream(inputStream);) {
-            Files.copy(gzipInputStream, outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(file.toPath());
+        try (PreparedStatement statement = databaseConnection.prepareStatement("VACUUM INTO ?");) {
+            statement.setString(1, file.getPath());
+            statement.executeUpdate();
         }
 
         long time = System.currentTimeMillis() - startTime;
-        Utils.log("downloaded in " + time + " ms");
+        Utils.log("wrote database (" + file.length() / 1024 / 1024 + " MB) in " + time + " ms");
+    }
+
+    /**
+     * The tables derived from shows and episodes that an incremental update refreshes.
+     */
+    private static final String[] DERIVED_TABLES = {"genres", "genreBits", "showsTitleIndex", "episodesTitleIndex", "showPayloads", "showHeatmaps"};
+
+    /**
+     * @return True if the database is a complete import with all derived tables, so it can be updated incrementally.
+     */
+    public boolean canUpdateIncrementally() throws SQLException {
+        String tableExistsQuery = "SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = ?";
+        try (PreparedStatement statement = databaseConnection.prepareStatement(tableExistsQuery);) {
+            for (String tableName : DERIVED_TABLES) {
+                statement.setString(1, tableName);
+                try (ResultSet resultSet = statement.executeQuery();) {
+                    if (!resultSet.next()) return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Updates a copy of the current database instead of importing everything again:
+     * the datasets are imported into temporary tables, compared with the shows and episodes by id
+     * and only the changed, new and deleted rows (and the data derived from them) are written in one transaction.
+     * The episodes that got votes are stored in the "newlyVotedEpisodes" table for the new episode notifications.
+     * Requires {@link #canUpdateIncrementally()}.
+     */
+    public void startIncremental() throws Exception {
+        long startTime = System.currentTimeMillis();
+        Utils.log("ImdbDatasetsImporter started (incremental)");
+
+        setImportPragmas(true);
+        importProjectedDatasets("temp.importedShows", "temp.importedEpisodes");
+        applyImportedDatasets();
+        resetPragmas();
+
+        long time = System.currentTimeMillis() - startTime;
+        Utils.log("ImdbDatasetsImporter finished (incremental) in " + time + " ms");
+    }
+
+    /**
+     * The page cache of the import connection in KiB (negative cache_size values are KiB instead of pages).
+     */
+    private static final int IMPORT_CACHE_SIZE_KIB = 256 * 1024;
+
+    /**
+     * Speeds up the import into the fresh database file at the cost of durability:
+     * no rollback journal, no fsync, a large page cache and temporary tables (of sorts and indices) in memory.
+     * If the import fails the file is unusable anyway, because it is only served after a successful import.
+     * An incremental update keeps the rollback journal, so its transaction can be rolled back,
+     * and stores the temporary tables of the imported datasets in temporary files.
+     *
+     * @param incremental True if an existing database is updated.
+     */
+    private void setImportPragmas(boolean incremental) throws SQLException {
+        try (Statement statement = databaseConnection.createStatement();) {
+            if (!incremental) statement.execute("PRAGMA journal_mode = OFF");
+            statement.execute("PRAGMA synchronous = OFF");
+            statement.execute("PRAGMA cache_size = -" + IMPORT_CACHE_SIZE_KIB);
+            statement.execute("PRAGMA temp_store = " + (incremental ? "FILE" : "MEMORY"));
+        }
+    }
+
+    /**
+     * Resets the import pragmas to the SQLite defaults before the database is served.
+     */
+    private void resetPragmas() throws SQLException {
+        try (Statement statement = databaseConnection.createStatement();) {
+            statement.execute("PRAGMA journal_mode = DELETE");
+            statement.execute("PRAGMA synchronous = FULL");
+            statement.execute("PRAGMA cache_size = -2000");
+            statement.execute("PRAGMA temp_store = DEFAULT");
+        }
+    }
+
+    /**
+     * The number of rows that are passed from a reader to the inserter at once.
+     */
+    private static final int CHUNK_SIZE = 10_000;
+
+    /**
+     * The maximum number of chunks that were read but not inserted yet.
+     * If the inserter is slower, the readers wait (backpressure).
+     */
+    private static final int QUEUE_CAPACITY = 8;
+
+    /**
+     * Rows of a dataset that were read, but not inserted yet.
+     *
+     * @param tableName   The name of the SQL table of the dataset.
+     * @param columnNames The column names of the dataset.
+     * @param rows        The rows (missing values are null), or an empty list if this is the end of the dataset.
+     */
+    private record RowChunk(String tableName, String[] columnNames, List<String[]> rows) {
+        private boolean isEnd() {
+            return rows.isEmpty();
+        }
+    }
+
+    /**
+     * Downloads, unzips, parses and imports all datasets from IMDb without writing them to files.
+     * The datasets are downloaded, decompressed and parsed concurrently by reader threads
+     * (at most {@link Configuration#imdbDatasetsDownloadThreads}), which put the rows into a shared bounded queue.
+     * The calling thread is the only inserter (SQLite has a single writer) and inserts the rows as soon as they arrive.
+     */
+    private void importDatasets() throws Exception {
+        long startTime = System.currentTimeMillis();
+        Utils.log("importing " + DATASETS.length + " datasets with " + downloadThreads + " download threads..");
+
+        BlockingQueue<RowChunk> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        ExecutorService readerExecutor = Executors.newFixedThreadPool(Math.max(1, Math.min(downloadThreads, DATASETS.length)));
+        try {
+
+            Map<String, Future<Long>> readers = new LinkedHashMap<>();
+            for (String dataset : DATASETS) {
+                readers.put(dataset, readerExecutor.submit(() -> readDataset(dataset, queue, new StagingProjection())));
+            }
+
+            insertRows(queue, DATASETS.length);
+
+            //rethrows the exceptions of the readers
+            for (Map.Entry<String, Future<Long>> reader : readers.entrySet()) {
+                getReaderResult(reader.getValue(), reader.getKey());
+            }
+
+            long time = System.currentTimeMillis() - startTime;
+            Utils.log("imported datasets in " + time + " ms");
+
+        } finally {
+            //stops the readers if the inserter failed (and makes room for their end chunks)
+            readerExecutor.shutdownNow();
+            queue.clear();
+        }
+    }
+
+    /**
+     * Waits for a reader.
+     *
+     * @param reader      The reader.
+     * @param datasetName The name of the dataset it reads.
+     * @return The result of the reader.
+     * @throws IOException If the reader failed.
+     */
+    private static <T> T getReaderResult(Future<T> reader, String datasetName) throws IOException, InterruptedException {
+        try {
+            return reader.get();
+        } catch (ExecutionException e) {
+            throw new IOException("reading " + datasetName + " failed: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Opens a dataset from IMDb (or from the cache if it is unchanged).
+     *
+     * @param datasetName The name of the dataset.
+     * @return A reader of the decompressed dataset.
+     * @throws IOException If the dataset can't be downloaded.
+     */
+    private ImdbTsvReader openDataset(String datasetName) throws IOException {
+        InputStream inputStream = downloader.open(datasetName);
+        try {
+            return new ImdbTsvReader(new GZIPInputStream(inputStream, 64 * 1024));
+        } catch (IOException e) {
+            inputStream.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Decides which rows and columns of a dataset are read.
+     */
+    private interface RowProjection {
+
+        /**
+         * @param header The reader positioned at the header row.
+         * @return The names of the read columns.
+         * @throws IOException If a column is missing.
+         */
+        String[] getColumnNames(ImdbTsvReader header) throws IOException;
+
+        /**
+         * @param row The reader positioned at a row.
+         * @return The values of the read columns (missing values are null), or null if the row is skipped.
+         * @throws IOException If the row can't be projected.
+         */
+        String[] project(ImdbTsvReader row) throws IOException;
+
+    }
+
+    /**
+     * Columns of the datasets that are never used by {@link #createTablesFromDatasets}, so they are not stored.
+     */
+    private static final Set<String> UNUSED_COLUMNS = Set.of("originalTitle", "isAdult");
+
+    /**
+     * All rows with all used columns, for the TEXT-only tables.
+     */
+    private static class StagingProjection implements RowProjection {
+
+        private int[] keptColumns;
+
+        @Override
+        public String[] getColumnNames(ImdbTsvReader header) {
+            keptColumns = IntStream.range(0, header.getColumnCount())
+                    .filter(column -> !UNUSED_COLUMNS.contains(header.getString(column)))
+                    .toArray();
+            return Arrays.stream(keptColumns).mapToObj(header::getString).toArray(String[]::new);
+        }
+
+        @Override
+        public String[] project(ImdbTsvReader row) {
+            String[] values = new String[keptColumns.length];
+            for (int i = 0; i < keptColumns.length; i++) {
+                values[i] = row.getString(keptColumns[i]);
+            }
+            return values;
+        }
 
-        return outputFile;
     }
 
     /**
-     * Import a .tsv dataset file into the SQL database.
+     * Reads the rows of a dataset from IMDb and puts them into the queue.
+     * The end of the dataset is always put into the queue, even if reading fails.
      *
-     * @param datasetFile The dataset file to import. Has to be a .tsv file.
+     * @param datasetName The name of the dataset.
+     * @param queue       The queue of the inserter.
+     * @param projection  The rows and columns that are read.
+     * @return The number of read rows.
      */
-    private void importDataset(File datasetFile) throws SQLException, IOException {
+    private long readDataset(String datasetName, BlockingQueue<RowChunk> queue, RowProjection projection) throws IOException, InterruptedException {
         long startTime = System.currentTimeMillis();
-        Utils.log("importing " + datasetFile.getName() + "..");
+        Utils.log("downloading " + datasetName + "..");
 
-        //title.basics.tsv -> title_basics
-        String sqlTableName = datasetFile.getName()
-                .replace(".tsv", "")
+        //title.basics.tsv.gz -> title_basics
+        String tableName = datasetName
+                .replace(".tsv.gz", "")
                 .replace(".", "_");
 
-        try (Stream<String> linesStream = Files.lines(datasetFile.toPath(), StandardCharsets.UTF_8);) {
-            Iterator<String> iterator = linesStream.iterator();
+        String[] columnNames = null;
+        long rowCount = 0;
+        try (ImdbTsvReader reader = openDataset(datasetName);) {
 
             //first line in the .tsv file are the column names
-            String[] columnNames = iterator.next().split("\t");
+            if (!reader.nextRow()) throw new IOException("empty dataset");
+            columnNames = projection.getColumnNames(reader);
 
-            //column1 TEXT, column2 TEXT, column3 TEXT, ...
-            String sqlColumnString = Arrays.stream(columnNames)
-                    .map(column -> column + " TEXT")
-                    .collect(Collectors.joining(", "));
+            List<String[]> rows = new ArrayList<>(CHUNK_SIZE);
+            while (reader.nextRow()) {
+                String[] values = projection.project(reader);
+                if (values == null) continue;
+                rows.add(values);
+                rowCount++;
 
-            databaseConnection.setAutoCommit(false);
+                if (rows.size() == CHUNK_SIZE) {
+                    queue.put(new RowChunk(tableName, columnNames, rows));
+                    rows = new ArrayList<>(CHUNK_SIZE);
+                }
+            }
+            if (!rows.isEmpty()) {
+                queue.put(new RowChunk(tableName, columnNames, rows));
+            }
+
+        } finally {
+            queue.put(new RowChunk(tableName, columnNames, List.of()));
+        }
+
+        long time = System.currentTimeMillis() - startTime;
+        Utils.log("downloaded and parsed " + datasetName + " (" + rowCount + " rows) in " + time + " ms");
+
+        return rowCount;
+    }
+
+    /**
+     * Takes the row chunks from the queue and inserts them into a new TEXT-only table per dataset,
+     * until the end of every dataset is reached.
+     * The rows are inserted in batches of {@link Configuration#imdbDatasetsBatchSize} rows.
+     *
+     * @param queue        The queue filled by {@link #readDataset}.
+     * @param datasetCount The number of datasets.
+     */
+    private void insertRows(BlockingQueue<RowChunk> queue, int datasetCount) throws SQLException, InterruptedException {
+        databaseConnection.setAutoCommit(false);
+
+        Map<String, PreparedStatement> insertStatements = new HashMap<>();
+        Map<String, Long> insertedRows = new HashMap<>();
+        Map<String, Long> insertTimes = new HashMap<>();
+        try {
+            int finishedDatasets = 0;
+            while (finishedDatasets < datasetCount) {
+                RowChunk chunk = queue.take();
+                if (chunk.isEnd()) {
+                    finishedDatasets++;
+                    PreparedStatement insertValuesStatement = insertStatements.get(chunk.tableName());
+                    if (insertValuesStatement != null) {
+                        long startTime = System.currentTimeMillis();
+                        insertValuesStatement.executeBatch();
+                        insertTimes.merge(chunk.tableName(), System.currentTimeMillis() - startTime, Long::sum);
+                    }
+                    long rows = insertedRows.getOrDefault(chunk.tableName(), 0L);
+                    long time = insertTimes.getOrDefault(chunk.tableName(), 0L);
+                    Utils.log("inserted " + chunk.tableName() + " (" + rows + " rows, " + (rows * 1000 / Math.max(1, time)) + " rows/s) in " + time + " ms");
+                    continue;
+                }
+
+                long startTime = System.currentTimeMillis();
+
+                PreparedStatement insertValuesStatement = insertStatements.get(chunk.tableName());
+                if (insertValuesStatement == null) {
+                    insertValuesStatement = createDatasetTable(chunk.tableName(), chunk.columnNames());
+                    insertStatements.put(chunk.tableName(), insertValuesStatement);
+                }
+
+                int columnCount = chunk.columnNames().length;
+                long rows = insertedRows.getOrDefault(chunk.tableName(), 0L);
+                for (String[] rowValues : chunk.rows()) {
+                    for (int i = 0; i < columnCount; i++) {
+                        //rows with missing trailing columns
+                        insertValuesStatement.setString(i + 1, i < rowValues.length ? rowValues[i] : null);
+                    }
+                    insertValuesStatement.addBatch();
+                    if (++rows % batchSize == 0) {
+                        insertValuesStatement.executeBatch();
+                    }
+                }
+
+                insertedRows.put(chunk.tableName(), rows);
+                insertTimes.merge(chunk.tableName(), System.currentTimeMillis() - startTime, Long::sum);
+            }
+        } finally {
+            for (PreparedStatement insertValuesStatement : insertStatements.values()) {
+                insertValuesStatement.close();
+            }
+        }
+
+        databaseConnection.commit();
+        databaseConnection.setAutoCommit(true);
+    }
+
+    /**
+     * Creates the TEXT-only table of a dataset.
+     *
+     * @return The prepared INSERT statement of the table.
+     */
+    private PreparedStatement createDatasetTable(String tableName, String[] columnNames) throws SQLException {
+
+        //column1 TEXT, column2 TEXT, column3 TEXT, ...
+        String sqlColumnString = Arrays.stream(columnNames)
+                .map(column -> column + " TEXT")
+                .collect(Collectors.joining(", "));
+
+        String createTableSql = String.format("CREATE TABLE %s (%s)", tableName, sqlColumnString);
+        try (Statement createTableStatement = databaseConnection.createStatement();) {
+            createTableStatement.executeUpdate(createTableSql);
+        }
+
+        //?, ?, ?, ...
+        String placeholders = String.join(", ", Collections.nCopies(columnNames.length, "?"));
+
+        String insertValuesSql = String.format("INSERT INTO %s VALUES (%s)", tableName, placeholders);
+        return databaseConnection.prepareStatement(insertValuesSql);
+    }
+
+    //projection
+
+    /**
+     * Downloads the datasets and inserts only the tv shows and episodes directly into the final "shows" and "episodes"
+     * tables, without TEXT-only tables of the whole datasets.
+     * The ratings and the season/episode numbers are read into primitive maps by the reader threads,
+     * title.basics is filtered by title type and episode numbers while parsing and joined with the maps by the inserter.
+     *
+     * @param showsTable    The name of the new shows table.
+     * @param episodesTable The name of the new episodes table.
+     */
+    private void importProjectedDatasets(String showsTable, String episodesTable) throws Exception {
+        long startTime = System.currentTimeMillis();
+        Utils.log("importing projected datasets with " + downloadThreads + " download threads..");
+
+        BlockingQueue<RowChunk> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        ExecutorService readerExecutor = Executors.newFixedThreadPool(Math.max(1, Math.min(downloadThreads, DATASETS.length)));
+        try {
+
+            //the readers run in this order if there are fewer threads, so the inserter never waits for a queued reader
+            Future<TconstMap> ratingsReader = readerExecutor.submit(this::readRatings);
+            Future<TconstMap> episodesReader = readerExecutor.submit(this::readEpisodeNumbers);
+            Future<Long> basicsReader = readerExecutor.submit(() -> readDataset(BASICS_DATASET, queue, new TvTitlesProjection(episodesReader)));
+
+            TconstMap ratings = getReaderResult(ratingsReader, RATINGS_DATASET);
+            TconstMap episodeNumbers = getReaderResult(episodesReader, EPISODE_DATASET);
+
+            try (Statement statement = databaseConnection.createStatement();) {
+                statement.executeUpdate(createShowsTableSql.formatted(showsTable));
+                statement.executeUpdate(createEpisodesTableSql.formatted(episodesTable));
+            }
+
+            insertShowsAndEpisodes(queue, ratings, episodeNumbers, showsTable, episodesTable);
+
+            getReaderResult(basicsReader, BASICS_DATASET);
+
+            long time = System.currentTimeMillis() - startTime;
+            Utils.log("imported projected datasets in " + time + " ms");
+
+        } finally {
+            //stops the readers if the inserter failed (and makes room for their end chunks)
+            readerExecutor.shutdownNow();
+            queue.clear();
+        }
+    }
+
+    //columns of the ratings map
+    private static final int RATING_TENTHS = 0, VOTES = 1;
+
+    /**
+     * Reads the ratings of all titles that have votes.
+     * IMDb ratings have one decimal, so they are stored as tenths (8.7 -> 87).
+     *
+     * @return The rating and votes per title.
+     */
+    private TconstMap readRatings() throws IOException {
+        long startTime = System.currentTimeMillis();
+        Utils.log("downloading " + RATINGS_DATASET + "..");
+
+        TconstMap ratings = new TconstMap(2);
+        try (ImdbTsvReader reader = openDataset(RATINGS_DATASET);) {
+            if (!reader.nextRow()) throw new IOException("empty dataset");
+            int tconstColumn = reader.getColumnIndex("tconst");
+            int ratingColumn = reader.getColumnIndex("averageRating");
+            int votesColumn = reader.getColumnIndex("numVotes");
+
+            while (reader.nextRow()) {
+                int tconst = reader.getTconst(tconstColumn);
+                String rating = reader.getString(ratingColumn);
+                int votes = reader.getInt(votesColumn, -1);
+                if (tconst == -1 || rating == null || votes == -1) continue;
+
+                int row = ratings.addRow(tconst);
+                ratings.set(row, RATING_TENTHS, (int) Math.round(Double.parseDouble(rating) * 10));
+                ratings.set(row, VOTES, votes);
+            }
+        }
+
+        long time = System.currentTimeMillis() - startTime;
+        Utils.log("downloaded and parsed " + RATINGS_DATASET + " (" + ratings.size() + " ratings) in " + time + " ms");
+
+        return ratings;
+    }
+
+    //columns of the episode numbers map
+    private static final int PARENT = 0, SEASON = 1, EPISODE = 2, INSERTED = 3;
+
+    /**
+     * Reads the show, season and episode of all episodes that have a season and episode number.
+     *
+     * @return The show, season and episode per episode (and whether it was inserted already).
+     */
+    private TconstMap readEpisodeNumbers() throws IOException {
+        long startTime = System.currentTimeMillis();
+        Utils.log("downloading " + EPISODE_DATASET + "..");
+
+        TconstMap episodeNumbers = new TconstMap(4);
+        try (ImdbTsvReader reader = openDataset(EPISODE_DATASET);) {
+            if (!reader.nextRow()) throw new IOException("empty dataset");
+            int tconstColumn = reader.getColumnIndex("tconst");
+            int parentColumn = reader.getColumnIndex("parentTconst");
+            int seasonColumn = reader.getColumnIndex("seasonNumber");
+            int episodeColumn = reader.getColumnIndex("episodeNumber");
+
+            while (reader.nextRow()) {
+                int tconst = reader.getTconst(tconstColumn);
+                int parent = reader.getTconst(parentColumn);
+                int season = reader.getInt(seasonColumn, -1);
+                int episode = reader.getInt(episodeColumn, -1);
+                if (tconst == -1 || parent == -1 || season == -1 || episode == -1) continue;
+
+                int row = episodeNumbers.addRow(tconst);
+                episodeNumbers.set(row, PARENT, parent);
+                episodeNumbers.set(row, SEASON, season);
+                episodeNumbers.set(row, EPISODE, episode);
+            }
+        }
+
+        long time = System.currentTimeMillis() - startTime;
+        Utils.log("downloaded and parsed " + EPISODE_DATASET + " (" + episodeNumbers.size() + " episodes) in " + time + " ms");
+
+        return episodeNumbers;
+    }
+
+    private static final String TV_SERIES = "tvSeries";
+
+    private static final String TV_MINI_SERIES = "tvMiniSeries";
+
+    private static final byte[] TV_SERIES_BYTES = TV_SERIES.getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] TV_MINI_SERIES_BYTES = TV_MINI_SERIES.getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Only the tv shows and the episodes of title.basics with the columns of the "shows" and "episodes" tables.
+     * Like the LEFT JOIN of {@link #createTablesFromDatasets}, an episode is every title in title.episode,
+     * regardless of its title type in title.basics (e.g. some are a tvSpecial or a video).
+     * The endYear and genres of episodes are never used, so they are not read.
+     */
+    private static class TvTitlesProjection implements RowProjection {
+
+        private static final String[] COLUMN_NAMES = {"tconst", "titleType", "primaryTitle", "startYear", "endYear", "runtimeMinutes", "genres"};
+
+        private final int[] columns = new int[COLUMN_NAMES.length];
+
+        private int titleTypeColumn;
+
+        private final Future<TconstMap> episodeNumbersReader;
+
+        private TconstMap episodeNumbers;
 
-            String createTableSql = String.format("CREATE TABLE %s (%s)", sqlTableName, sqlColumnString);
-            try (Statement createTableStatement = databaseConnection.createStatement();) {
-                createTableStatement.executeUpdate(createTableSql);
+        /**
+         * @param episodeNumbersReader The reader of the episode numbers, it was submitted before this projection's reader,
+         *                             so waiting for it can't deadlock.
+         */
+        private TvTitlesProjection(Future<TconstMap> episodeNumbersReader) {
+            this.episodeNumbersReader = episodeNumbersReader;
+        }
+
+        private TconstMap getEpisodeNumbers() throws IOException {
+            if (episodeNumbers == null) {
+                try {
+                    episodeNumbers = episodeNumbersReader.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while waiting for " + EPISODE_DATASET);
+                } catch (ExecutionException e) {
+                    throw new IOException("error while reading " + EPISODE_DATASET, e.getCause());
+                }
             }
+            return episodeNumbers;
+        }
 
-            //?, ?, ?, ...
-            String placeholders = String.join(", ", Collections.nCopies(columnNames.length, "?"));
+        @Override
+        public String[] getColumnNames(ImdbTsvReader header) throws IOException {
+            for (int i = 0; i < COLUMN_NAMES.length; i++) {
+                columns[i] = header.getColumnIndex(COLUMN_NAMES[i]);
+            }
+            titleTypeColumn = columns[1];
+            return COLUMN_NAMES;
+        }
 
-            String insertValuesSql = String.format("INSERT INTO %s VALUES (%s)", sqlTableName, placeholders);
-            try (PreparedStatement insertValuesStatement = databaseConnection.prepareStatement(insertValuesSql);) {
-                while (iterator.hasNext()) {
-                    String row = iterator.next();
-                    String[] rowValues = row.split("\t");
+        @Override
+        public String[] project(ImdbTsvReader row) throws IOException {
+            boolean show = row.fieldEquals(titleTypeColumn, TV_SERIES_BYTES) || row.fieldEquals(titleTypeColumn, TV_MINI_SERIES_BYTES);
+            if (!show && getEpisodeNumbers().getRow(row.getTconst(columns[0])) == -1) {
+                return null;
+            }
+
+            String[] values = new String[COLUMN_NAMES.length];
+            for (int i = 0; i < COLUMN_NAMES.length; i++) {
+                if (!show && (i == 4 || i == 6)) continue;
+                values[i] = row.getString(columns[i]);
+            }
+            return values;
+        }
+
+    }
+
+    /**
+     * Takes the tv titles of title.basics from the queue and inserts the shows with votes and the episodes
+     * with season and episode numbers, together with their ratings.
+     * Afterwards the episodes that are missing in title.basics are inserted without title, year and duration.
+     *
+     * @param queue          The queue filled by {@link #readDataset} with {@link TvTitlesProjection}.
+     * @param ratings        The result of {@link #readRatings}.
+     * @param episodeNumbers The result of {@link #readEpisodeNumbers}.
+     * @param showsTable     The name of the shows table.
+     * @param episodesTable  The name of the episodes table.
+     */
+    private void insertShowsAndEpisodes(BlockingQueue<RowChunk> queue, TconstMap ratings, TconstMap episodeNumbers, String showsTable, String episodesTable) throws SQLException, InterruptedException {
+        long startTime = System.currentTimeMillis();
+
+        databaseConnection.setAutoCommit(false);
 
-                    int i = 0;
-                    for (String value : rowValues) {
-                        i++;
+        long showCount = 0;
+        long episodeCount = 0;
+        try (PreparedStatement insertShowStatement = databaseConnection.prepareStatement("INSERT INTO " + showsTable + " VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+             PreparedStatement insertEpisodeStatement = databaseConnection.prepareStatement("INSERT INTO " + episodesTable + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");) {
 
-                        //replace \N (which denotes a missing value) by null
-                        if (value.equals("\\N")) {
-                            value = null;
-                        }
-                        insertValuesStatement.setString(i, value);
+            RowChunk chunk;
+            while (!(chunk = queue.take()).isEnd()) {
+                for (String[] values : chunk.rows()) {
+                    int tconst = TconstMap.parseTconst(values[0]);
+                    int ratingRow = ratings.getRow(tconst);
+
+                    int episodeRow = episodeNumbers.getRow(tconst);
+                    if (episodeRow != -1 && episodeNumbers.get(episodeRow, INSERTED) == 0) {
+                        episodeNumbers.set(episodeRow, INSERTED, 1);
+
+                        setEpisodeValues(insertEpisodeStatement, values[0], episodeNumbers, episodeRow, values[2], values[3], values[5], ratings, ratingRow);
+                        insertEpisodeStatement.addBatch();
+                        if (++episodeCount % batchSize == 0) insertEpisodeStatement.executeBatch();
                     }
 
-                    insertValuesStatement.executeUpdate();
+                    //we only want tv shows with votes
+                    if ((TV_SERIES.equals(values[1]) || TV_MINI_SERIES.equals(values[1])) && ratingRow != -1) {
+                        insertShowStatement.setString(1, values[0]);
+                        insertShowStatement.setString(2, values[2]);
+                        insertShowStatement.setString(3, values[3]);
+                        insertShowStatement.setString(4, values[4]);
+                        insertShowStatement.setString(5, values[5]);
+                        insertShowStatement.setString(6, values[6]);
+                        setRatingValues(insertShowStatement, 7, ratings, ratingRow);
+                        insertShowStatement.addBatch();
+                        if (++showCount % batchSize == 0) insertShowStatement.executeBatch();
+                    }
                 }
             }
 
+            //episodes that are not in title.basics
+            for (int episodeRow = 0; episodeRow < episodeNumbers.size(); episodeRow++) {
+                if (episodeNumbers.get(episodeRow, INSERTED) != 0) continue;
+                int tconst = episodeNumbers.getTconst(episodeRow);
+                setEpisodeValues(insertEpisodeStatement, TconstMap.formatTconst(tconst), episodeNumbers, episodeRow, null, null, null, ratings, ratings.getRow(tconst));
+                insertEpisodeStatement.addBatch();
+                if (++episodeCount % batchSize == 0) insertEpisodeStatement.executeBatch();
+            }
+
+            insertShowStatement.executeBatch();
+            insertEpisodeStatement.executeBatch();
         }
 
         databaseConnection.commit();
         databaseConnection.setAutoCommit(true);
 
         long time = System.currentTimeMillis() - startTime;
-        Utils.log("imported in " + time + " ms");
+        long rows = showCount + episodeCount;
+        Utils.log("inserted " + showCount + " shows and " + episodeCount + " episodes (" + (rows * 1000 / Math.max(1, time)) + " rows/s) in " + time + " ms");
+    }
+
+    private void setEpisodeValues(PreparedStatement insertEpisodeStatement, String episodeId, TconstMap episodeNumbers, int episodeRow, String title, String startYear, String duration, TconstMap ratings, int ratingRow) throws SQLException {
+        insertEpisodeStatement.setString(1, episodeId);
+        insertEpisodeStatement.setString(2, TconstMap.formatTconst(episodeNumbers.get(episodeRow, PARENT)));
+        insertEpisodeStatement.setString(3, title);
+        insertEpisodeStatement.setInt(4, episodeNumbers.get(episodeRow, SEASON));
+        insertEpisodeStatement.setInt(5, episodeNumbers.get(episodeRow, EPISODE));
+        insertEpisodeStatement.setString(6, startYear);
+        insertEpisodeStatement.setString(7, duration);
+        setRatingValues(insertEpisodeStatement, 8, ratings, ratingRow);
     }
 
     /**
-     * 1. Combines the downloaded tables into a "show" and an "episodes" table.
-     * 2. Creates important indices to improve database performance.
-     * 3. Deletes unnecessary shows/episodes (shows with no episodes or episodes not belonging to any show).
-     * 4. Deletes the temporary tables.
-     * 5. Creates a "genres" table to respect the 1NF.
+     * Sets the rating and votes (or NULL if the title has no votes).
      */
-    private void optimizeTables() throws SQLException {
+    private void setRatingValues(PreparedStatement insertStatement, int ratingIndex, TconstMap ratings, int ratingRow) throws SQLException {
+        if (ratingRow == -1) {
+            insertStatement.setNull(ratingIndex, Types.REAL);
+            insertStatement.setNull(ratingIndex + 1, Types.INTEGER);
+        } else {
+            insertStatement.setDouble(ratingIndex, ratings.get(ratingRow, RATING_TENTHS) / 10.0);
+            insertStatement.setInt(ratingIndex + 1, ratings.get(ratingRow, VOTES));
+        }
+    }
+
+    //incremental update
+
+    /**
+     * Splits the comma separated genres of a shows table: (id, genre).
+     * https://stackoverflow.com/questions/24258878/how-to-split-comma-separated-values
+     */
+    private final String splitGenresSql =
+            "WITH RECURSIVE split_genres(id, genre, next) AS (SELECT showId, '', genres || ',' FROM %s UNION ALL SELECT id, substr(next, 0, instr(next, ',')), substr(next, instr(next, ',') + 1) FROM split_genres WHERE next != '') SELECT id, genre FROM split_genres WHERE genre != ''";
+
+    /**
+     * Compares the imported temporary tables with the shows and episodes and applies the differences
+     * (and refreshes the derived tables of the affected shows) in one transaction.
+     */
+    private void applyImportedDatasets() throws SQLException {
+        long startTime = System.currentTimeMillis();
+        Utils.log("comparing imported datasets..");
+
+        try (Statement statement = databaseConnection.createStatement();) {
+
+            //same cleanup as optimizeTables
+
+            statement.executeUpdate("CREATE INDEX temp.importedEpisodesShowIdIndex ON importedEpisodes(showId)");
+            statement.executeUpdate("DELETE FROM importedShows WHERE NOT EXISTS (SELECT 1 FROM importedEpisodes e WHERE e.showId = importedShows.showId)");
+            statement.executeUpdate("DELETE FROM importedEpisodes WHERE showId NOT IN (SELECT showId FROM importedShows)");
+
+            //genre masks, new genres get the bits after the highest bit
+            //(the bits of genres that are no longer used aren't reused in the same update, so every show that had
+            //such a genre gets a different genre mask and is refreshed)
+
+            statement.executeUpdate("CREATE TEMP TABLE importedGenres AS " + splitGenresSql.formatted("importedShows"));
+            statement.executeUpdate("CREATE INDEX temp.importedGenresIndex ON importedGenres(id)");
+
+            String newGenreBitsSql =
+                    "CREATE TEMP TABLE newGenreBits AS " +
+                            "SELECT genre, (SELECT IFNULL(MAX(bit), -1) FROM genreBits) + ROW_NUMBER() OVER (ORDER BY genre) AS bit " +
+                            "FROM (SELECT DISTINCT genre FROM importedGenres WHERE genre NOT IN (SELECT genre FROM genreBits))";
+            statement.executeUpdate(newGenreBitsSql);
+            //the in-memory search index stores the genre masks as ints, a full import assigns the bits without gaps
+            try (ResultSet resultSet = statement.executeQuery("SELECT MAX(bit) FROM newGenreBits");) {
+                if (resultSet.next() && resultSet.getInt(1) >= Integer.SIZE) throw new SQLException("too many genres for a genre mask");
+            }
+
+            statement.executeUpdate("ALTER TABLE importedShows ADD genreMask INTEGER NOT NULL DEFAULT 0");
+            String updateImportedGenreMaskSql =
+                    "UPDATE importedShows SET genreMask = IFNULL((SELECT SUM(1 << b.bit) FROM importedGenres g " +
+                            "JOIN (SELECT genre, bit FROM genreBits UNION ALL SELECT genre, bit FROM newGenreBits) b ON g.genre = b.genre " +
+                            "WHERE g.id = importedShows.showId), 0)";
+            statement.executeUpdate(updateImportedGenreMaskSql);
+
+            //differences (IS compares NULL values)
+
+            String changedShowsSql =
+                    "CREATE TEMP TABLE changedShows AS " +
+                            "SELECT i.showId, s.showId IS NULL AS inserted " +
+                            "FROM importedShows i LEFT JOIN shows s ON s.showId = i.showId " +
+                            "WHERE s.showId IS NULL OR NOT (s.title IS i.title AND s.startYear IS i.startYear AND s.endYear IS i.endYear " +
+                            "AND s.duration IS i.duration AND s.rating IS i.rating AND s.votes IS i.votes AND s.genreMask IS i.genreMask)";
+            statement.executeUpdate(changedShowsSql);
+
+            String deletedShowsSql = "CREATE TEMP TABLE deletedShows AS SELECT showId FROM shows WHERE showId NOT IN (SELECT showId FROM importedShows)";
+            statement.executeUpdate(deletedShowsSql);
+
+            String changedEpisodesSql =
+                    "CREATE TEMP TABLE changedEpisodes AS " +
+                            "SELECT i.episodeId, i.showId, e.showId AS oldShowId, e.episodeId IS NULL AS inserted, " +
+                            "i.votes IS NOT NULL AND e.votes IS NULL AS newlyVoted " +
+                            "FROM importedEpisodes i LEFT JOIN episodes e ON e.episodeId = i.episodeId " +
+                            "WHERE e.episodeId IS NULL OR NOT (e.showId IS i.showId AND e.title IS i.title AND e.season IS i.season " +
+                            "AND e.episode IS i.episode AND e.startYear IS i.startYear AND e.duration IS i.duration " +
+                            "AND e.rating IS i.rating AND e.votes IS i.votes)";
+            statement.executeUpdate(changedEpisodesSql);
+
+            String deletedEpisodesSql = "CREATE TEMP TABLE deletedEpisodes AS SELECT episodeId, showId FROM episodes WHERE episodeId NOT IN (SELECT episodeId FROM importedEpisodes)";
+            statement.executeUpdate(deletedEpisodesSql);
+
+            //shows whose payload, heatmap, genres or title need to be refreshed
+            String affectedShowsSql =
+                    "CREATE TEMP TABLE affectedShows AS " +
+                            "SELECT showId FROM changedShows UNION SELECT showId FROM deletedShows " +
+                            "UNION SELECT showId FROM changedEpisodes UNION SELECT oldShowId FROM changedEpisodes WHERE oldShowId IS NOT NULL " +
+                            "UNION SELECT showId FROM deletedEpisodes";
+            statement.executeUpdate(affectedShowsSql);
+
+            String summarySql =
+                    "SELECT " +
+                            "(SELECT COUNT(*) FROM changedShows WHERE inserted) AS insertedShows, " +
+                            "(SELECT COUNT(*) FROM changedShows WHERE NOT inserted) AS updatedShows, " +
+                            "(SELECT COUNT(*) FROM deletedShows) AS deletedShows, " +
+                            "(SELECT COUNT(*) FROM changedEpisodes WHERE inserted) AS insertedEpisodes, " +
+                            "(SELECT COUNT(*) FROM changedEpisodes WHERE NOT inserted) AS updatedEpisodes, " +
+                            "(SELECT COUNT(*) FROM deletedEpisodes) AS deletedEpisodes, " +
+                            "(SELECT COUNT(*) FROM changedEpisodes WHERE newlyVoted) AS newlyVotedEpisodes";
+            String summary;
+            try (ResultSet resultSet = statement.executeQuery(summarySql);) {
+                resultSet.next();
+                summary = String.format(
+                        "shows: %d new, %d changed, %d deleted | episodes: %d new, %d changed, %d deleted, %d newly voted",
+                        resultSet.getLong(1), resultSet.getLong(2), resultSet.getLong(3),
+                        resultSet.getLong(4), resultSet.getLong(5), resultSet.getLong(6), resultSet.getLong(7)
+                );
+            }
+            Utils.log("differences: " + summary);
+
+            //apply
+
+            Utils.log("applying differences..");
+            databaseConnection.setAutoCommit(false);
+            try {
+
+                String deleteShowsSql = "DELETE FROM shows WHERE showId IN (SELECT showId FROM deletedShows)";
+                statement.executeUpdate(deleteShowsSql);
+                String upsertShowsSql =
+                        "INSERT OR REPLACE INTO shows (showId, title, startYear, endYear, duration, rating, votes, genreMask) " +
+                                "SELECT showId, title, startYear, endYear, duration, rating, votes, genreMask FROM importedShows " +
+                                "WHERE showId IN (SELECT showId FROM changedShows)";
+                statement.executeUpdate(upsertShowsSql);
+
+                String deleteEpisodesSql = "DELETE FROM episodes WHERE episodeId IN (SELECT episodeId FROM deletedEpisodes)";
+                statement.executeUpdate(deleteEpisodesSql);
+                String upsertEpisodesSql =
+                        "INSERT OR REPLACE INTO episodes (episodeId, showId, title, season, episode, startYear, duration, rating, votes, genreMask) " +
+                                "SELECT episodeId, showId, title, season, episode, startYear, duration, rating, votes, 0 FROM importedEpisodes " +
+                                "WHERE episodeId IN (SELECT episodeId FROM changedEpisodes)";
+                statement.executeUpdate(upsertEpisodesSql);
+                String updateEpisodesGenreMaskSql =
+                        "UPDATE episodes SET genreMask = IFNULL((SELECT s.genreMask FROM shows s WHERE s.showId = episodes.showId), 0) " +
+                                "WHERE showId IN (SELECT showId FROM affectedShows)";
+                statement.executeUpdate(updateEpisodesGenreMaskSql);
+
+                //derived tables
+
+                statement.executeUpdate("DELETE FROM genres WHERE showId IN (SELECT showId FROM affectedShows)");
+                statement.executeUpdate("INSERT INTO genres SELECT id, genre FROM importedGenres WHERE id IN (SELECT showId FROM affectedShows)");
+
+                statement.executeUpdate("INSERT INTO genreBits SELECT genre, bit FROM newGenreBits");
+                statement.executeUpdate("DELETE FROM genreBits WHERE genre NOT IN (SELECT genre FROM genres)");
+
+                statement.executeUpdate("DELETE FROM showsTitleIndex WHERE showId IN (SELECT showId FROM affectedShows)");
+                statement.executeUpdate("INSERT INTO showsTitleIndex SELECT showId, title FROM shows WHERE votes IS NOT NULL AND showId IN (SELECT showId FROM affectedShows)");
+                statement.executeUpdate("DELETE FROM episodesTitleIndex WHERE episodeId IN (SELECT episodeId FROM changedEpisodes UNION SELECT episodeId FROM deletedEpisodes)");
+                statement.executeUpdate("INSERT INTO episodesTitleIndex SELECT episodeId, title FROM episodes WHERE votes IS NOT NULL AND episodeId IN (SELECT episodeId FROM changedEpisodes)");
+
+                statement.executeUpdate("DELETE FROM showPayloads WHERE showId IN (SELECT showId FROM affectedShows)");
+                insertShowPayloads(statement, "t.showId IN (SELECT showId FROM affectedShows)");
+
+                statement.executeUpdate("DELETE FROM showHeatmaps WHERE showId IN (SELECT showId FROM affectedShows)");
+                insertShowHeatmaps(statement, "showId IN (SELECT showId FROM affectedShows)");
+
+                //relative to the copied database, see UserDatabase#getUsersFollowingShowsWithNewEpisodes
+                statement.executeUpdate("DROP TABLE IF EXISTS newlyVotedEpisodes");
+                statement.executeUpdate("CREATE TABLE newlyVotedEpisodes (episodeId TEXT PRIMARY KEY, showId TEXT) STRICT");
+                statement.executeUpdate("INSERT INTO newlyVotedEpisodes SELECT episodeId, showId FROM changedEpisodes WHERE newlyVoted");
+
+                databaseConnection.commit();
+            } catch (SQLException e) {
+                databaseConnection.rollback();
+                throw e;
+            } finally {
+                databaseConnection.setAutoCommit(true);
+            }
+
+            Utils.log("deleting imported tables..");
+            for (String tableName : new String[]{"importedShows", "importedEpisodes", "importedGenres", "newGenreBits", "changedShows", "deletedShows", "changedEpisodes", "deletedEpisodes", "affectedShows"}) {
+                statement.executeUpdate("DROP TABLE temp." + tableName);
+            }
+
+            Utils.log("analyzing tables..");
+            statement.executeUpdate("ANALYZE");
+
+            long time = System.currentTimeMillis() - startTime;
+            Utils.log("applied differences (" + summary + ") in " + time + " ms");
+        }
+    }
+
+    private final String createShowsTableSql =
+            "CREATE TABLE %s (showId TEXT PRIMARY KEY, title TEXT, startYear INTEGER, endYear INTEGER, duration INTEGER, genres TEXT, rating REAL, votes INTEGER) STRICT";
+
+    private final String createEpisodesTableSql =
+            "CREATE TABLE %s (episodeId TEXT PRIMARY KEY, showId TEXT, title TEXT, season INTEGER, episode INTEGER, startYear INTEGER, duration INTEGER, rating REAL, votes INTEGER) STRICT";
+
+    /**
+     * Combines the TEXT-only tables of the datasets into a "shows" and an "episodes" table and deletes them.
+     */
+    private void createTablesFromDatasets() throws SQLException {
         long startTime = System.currentTimeMillis();
-        Utils.log("optimizing tables..");
 
         try (Statement statement = databaseConnection.createStatement();) {
 
             //shows
 
             Utils.log("creating shows table..");
-            String createShowsTableSql =
-                    "CREATE TABLE shows (showId TEXT PRIMARY KEY, title TEXT, startYear INTEGER, endYear INTEGER, duration INTEGER, genres TEXT, rating REAL, votes INTEGER) STRICT";
-            statement.executeUpdate(createShowsTableSql);
+            statement.executeUpdate(createShowsTableSql.formatted("shows"));
 
             Utils.log("inserting shows..");
             String insertShowsSql =
@@ -180,16 +980,10 @@ public class ImdbDatasetsImporter {
                             "ORDER BY CAST(numVotes AS INTEGER) DESC";
             statement.executeUpdate(insertShowsSql);
 
-            Utils.log("creating shows(votes) index..");
-            String createShowsVotesIndexSql = "CREATE INDEX showsVotesIndex ON shows(votes)";
-            statement.executeUpdate(createShowsVotesIndexSql);
-
             //episodes
 
             Utils.log("creating episodes table..");
-            String createEpisodesTableSql =
-                    "CREATE TABLE episodes (episodeId TEXT PRIMARY KEY, showId TEXT, title TEXT, season INTEGER, episode INTEGER, startYear INTEGER, duration INTEGER, rating REAL, votes INTEGER) STRICT";
-            statement.executeUpdate(createEpisodesTableSql);
+            statement.executeUpdate(createEpisodesTableSql.formatted("episodes"));
 
             Utils.log("inserting episodes..");
             // || ' (' || (SELECT title FROM shows WHERE showId = parentTconst) || ')'
@@ -203,13 +997,40 @@ public class ImdbDatasetsImporter {
                             "ORDER BY CAST(numVotes AS INTEGER) DESC";
             statement.executeUpdate(insertEpisodesSql);
 
-            Utils.log("creating episodes(showId) index..");
-            String createEpisodesShowIdIndexSql = "CREATE INDEX episodesShowIdIndex ON episodes(showId)";
-            statement.executeUpdate(createEpisodesShowIdIndexSql);
+            Utils.log("deleting temporary tables..");
+            String deleteEpisodesSql = "DROP TABLE title_episode";
+            String deleteBasicsSql = "DROP TABLE title_basics";
+            String deleteRatingsSql = "DROP TABLE title_ratings";
+            statement.executeUpdate(deleteEpisodesSql);
+            statement.executeUpdate(deleteBasicsSql);
+            statement.executeUpdate(deleteRatingsSql);
+
+        }
+
+        long time = System.currentTimeMillis() - startTime;
+        Utils.log("created shows and episodes tables in " + time + " ms");
+    }
 
-            Utils.log("creating episodes(votes) index..");
-            String createEpisodesVotesIndexSql = "CREATE INDEX episodesVotesIndex ON episodes(votes)";
-            statement.executeUpdate(createEpisodesVotesIndexSql);
+    /**
+     * 1. Creates important indices to improve database performance.
+     * 2. Deletes unnecessary shows/episodes (shows with no episodes or episodes not belonging to any show).
+     * 3. Creates a "genres" table to respect the 1NF.
+     * 4. Stores the genres of every show (and its episodes) as a bitmask.
+     * 5. Creates indices for every sort of a search.
+     * 6. Creates trigram indices for title searches.
+     * 7. Stores the /show response of every show.
+     * 8. Stores the rating heatmap of every show.
+     */
+    private void optimizeTables() throws SQLException {
+        long startTime = System.currentTimeMillis();
+        Utils.log("optimizing tables..");
+
+        try (Statement statement = databaseConnection.createStatement();) {
+
+            //also returns the episodes of a show in order
+            Utils.log("creating episodes(showId, season, episode) index..");
+            String createEpisodesShowIdIndexSql = "CREATE INDEX episodesShowIdIndex ON episodes(showId, season, episode)";
+            statement.executeUpdate(createEpisodesShowIdIndexSql);
 
             //cleanup
 
@@ -221,14 +1042,6 @@ public class ImdbDatasetsImporter {
             String deleteEpisodes = "DELETE FROM episodes WHERE episodes.showId NOT IN (SELECT shows.showId FROM shows)";
             statement.executeUpdate(deleteEpisodes);
 
-            Utils.log("deleting temporary tables..");
-            String deleteEpisodesSql = "DROP TABLE title_episode";
-            String deleteBasicsSql = "DROP TABLE title_basics";
-            String deleteRatingsSql = "DROP TABLE title_ratings";
-            statement.executeUpdate(deleteEpisodesSql);
-            statement.executeUpdate(deleteBasicsSql);
-            statement.executeUpdate(deleteRatingsSql);
-
             //genres
 
             Utils.log("creating genres table..");
@@ -237,8 +1050,7 @@ public class ImdbDatasetsImporter {
 
             Utils.log("inserting genres..");
             //splits genres by comma and inserts into newly created genres table
-            //https://stackoverflow.com/questions/24258878/how-to-split-comma-separated-values
-            String insertGenresSql = "INSERT INTO genres WITH RECURSIVE split_genres(id, genre, next) AS (SELECT showId, '', genres || ',' FROM shows UNION ALL SELECT id, substr(next, 0, instr(next, ',')), substr(next, instr(next, ',') + 1) FROM split_genres WHERE next != '') SELECT id, genre FROM split_genres WHERE genre != ''";
+            String insertGenresSql = "INSERT INTO genres " + splitGenresSql.formatted("shows");
             statement.executeUpdate(insertGenresSql);
 
             Utils.log("creating genres(showId) index..");
@@ -249,9 +1061,198 @@ public class ImdbDatasetsImporter {
             String deleteGenresColumn = "ALTER TABLE shows DROP genres";
             statement.executeUpdate(deleteGenresColumn);
 
+            //genre masks
+
+            Utils.log("creating genreBits table..");
+            String createGenreBitsTableSql = "CREATE TABLE genreBits (genre TEXT PRIMARY KEY, bit INTEGER) STRICT";
+            statement.executeUpdate(createGenreBitsTableSql);
+
+            //bit i = i-th genre in alphabetical order (IMDb has less than 64 genres)
+            String insertGenreBitsSql = "INSERT INTO genreBits SELECT genre, ROW_NUMBER() OVER (ORDER BY genre) - 1 FROM (SELECT DISTINCT genre FROM genres)";
+            statement.executeUpdate(insertGenreBitsSql);
+
+            Utils.log("inserting shows genre masks..");
+            String addShowsGenreMaskSql = "ALTER TABLE shows ADD genreMask INTEGER NOT NULL DEFAULT 0";
+            statement.executeUpdate(addShowsGenreMaskSql);
+            String updateShowsGenreMaskSql = "UPDATE shows SET genreMask = IFNULL((SELECT SUM(1 << b.bit) FROM genres g JOIN genreBits b ON g.genre = b.genre WHERE g.showId = shows.showId), 0)";
+            statement.executeUpdate(updateShowsGenreMaskSql);
+
+            //episodes are filtered by the genres of their show
+            Utils.log("inserting episodes genre masks..");
+            String addEpisodesGenreMaskSql = "ALTER TABLE episodes ADD genreMask INTEGER NOT NULL DEFAULT 0";
+            statement.executeUpdate(addEpisodesGenreMaskSql);
+            String updateEpisodesGenreMaskSql = "UPDATE episodes SET genreMask = IFNULL((SELECT s.genreMask FROM shows s WHERE s.showId = episodes.showId), 0)";
+            statement.executeUpdate(updateEpisodesGenreMaskSql);
+
+            //search indices
+
+            createSearchIndices(statement, "shows", "showId");
+            createSearchIndices(statement, "episodes", "episodeId");
+
+            Utils.log("analyzing tables..");
+            statement.executeUpdate("ANALYZE");
+
+            //title search
+
+            //the trigram tokenizer lets the full-text index answer LIKE '%...%' patterns
+            Utils.log("creating shows title index..");
+            String createShowsTitleIndexSql = "CREATE VIRTUAL TABLE showsTitleIndex USING fts5(showId UNINDEXED, title, tokenize = 'trigram')";
+            statement.executeUpdate(createShowsTitleIndexSql);
+            String insertShowsTitleIndexSql = "INSERT INTO showsTitleIndex SELECT showId, title FROM shows WHERE votes IS NOT NULL";
+            statement.executeUpdate(insertShowsTitleIndexSql);
+
+            //searches only return episodes with votes
+            Utils.log("creating episodes title index..");
+            String createEpisodesTitleIndexSql = "CREATE VIRTUAL TABLE episodesTitleIndex USING fts5(episodeId UNINDEXED, title, tokenize = 'trigram')";
+            statement.executeUpdate(createEpisodesTitleIndexSql);
+            String insertEpisodesTitleIndexSql = "INSERT INTO episodesTitleIndex SELECT episodeId, title FROM episodes WHERE votes IS NOT NULL";
+            statement.executeUpdate(insertEpisodesTitleIndexSql);
+
+            //show payloads
+
+            Utils.log("creating showPayloads table..");
+            String createShowPayloadsTableSql = "CREATE TABLE showPayloads (showId TEXT PRIMARY KEY, json BLOB) STRICT";
+            statement.executeUpdate(createShowPayloadsTableSql);
+
+            Utils.log("inserting show payloads..");
+            databaseConnection.setAutoCommit(false);
+            insertShowPayloads(statement, "1");
+            databaseConnection.commit();
+            databaseConnection.setAutoCommit(true);
+
+            //show heatmaps
+
+            Utils.log("creating showHeatmaps table..");
+            String createShowHeatmapsTableSql = "CREATE TABLE showHeatmaps (showId TEXT PRIMARY KEY, json BLOB, jsonWithTitles BLOB) STRICT";
+            statement.executeUpdate(createShowHeatmapsTableSql);
+
+            Utils.log("inserting show heatmaps..");
+            databaseConnection.setAutoCommit(false);
+            insertShowHeatmaps(statement, "1");
+            databaseConnection.commit();
+            databaseConnection.setAutoCommit(true);
+
         }
 
         long time = System.currentTimeMillis() - startTime;
         Utils.log("optimized tables in " + time + " ms");
     }
+
+    /**
+     * Builds the /show response of the shows with the same queries and JSON conversion as {@link ImdbDatabase#writeShow},
+     * so the precomputed responses have the same bytes as the live ones.
+     *
+     * @param condition An SQL condition for the shows, e.g. "t.showId IN (...)", or "1" for all shows.
+     */
+    void insertShowPayloads(Statement statement, String condition) throws SQLException {
+        String selectShowsSql = ImdbDatabase.SELECT_SHOWS_QUERY + " WHERE " + condition;
+        String insertShowPayloadSql = "INSERT INTO showPayloads VALUES (?, ?)";
+
+        try (ResultSet resultSet = statement.executeQuery(selectShowsSql);
+             PreparedStatement selectEpisodesStatement = databaseConnection.prepareStatement(ImdbDatabase.SHOW_EPISODES_QUERY);
+             PreparedStatement insertShowPayloadStatement = databaseConnection.prepareStatement(insertShowPayloadSql);) {
+
+            String[] columnNames = SqliteDatabase.getColumnNames(resultSet);
+            ByteArrayOutputStream episodesOutputStream = new ByteArrayOutputStream();
+            ByteArrayOutputStream showPayloadOutputStream = new ByteArrayOutputStream();
+            while (resultSet.next()) {
+                String showId = resultSet.getString("showId");
+                JSONObject showJson = SqliteDatabase.rowToJson(resultSet, columnNames);
+
+                episodesOutputStream.reset();
+                selectEpisodesStatement.setString(1, showId);
+                try (ResultSet episodesResultSet = selectEpisodesStatement.executeQuery();) {
+                    ResultSetJsonWriter.write(episodesResultSet, episodesOutputStream);
+                }
+
+                showPayloadOutputStream.reset();
+                ImdbDatabase.writeShowResponse(showJson, episodesOutputStream.toByteArray(), showPayloadOutputStream);
+
+                insertShowPayloadStatement.setString(1, showId);
+                insertShowPayloadStatement.setBytes(2, showPayloadOutputStream.toByteArray());
+                insertShowPayloadStatement.executeUpdate();
+            }
+
+        } catch (IOException e) {
+            throw new SQLException("error while writing show payloads", e);
+        }
+    }
+
+    /**
+     * Builds the {@link ShowHeatmap} of every show in one pass over the episodes (ordered by the episodes(showId, season, episode) index).
+     *
+     * @param condition An SQL condition for the episodes, e.g. "showId IN (...)", or "1" for all shows.
+     */
+    private void insertShowHeatmaps(Statement statement, String condition) throws SQLException {
+        String selectEpisodesSql = "SELECT episodeId, showId, title, season, episode, rating, votes FROM episodes WHERE " + condition + " ORDER BY showId, season, episode";
+        String insertShowHeatmapSql = "INSERT INTO showHeatmaps VALUES (?, ?, ?)";
+
+        try (ResultSet resultSet = statement.executeQuery(selectEpisodesSql);
+             PreparedStatement insertShowHeatmapStatement = databaseConnection.prepareStatement(insertShowHeatmapSql);) {
+
+            ShowHeatmap heatmap = null;
+            while (resultSet.next()) {
+                String showId = resultSet.getString("showId");
+                if (heatmap == null || !heatmap.getShowId().equals(showId)) {
+                    if (heatmap != null) insertShowHeatmap(insertShowHeatmapStatement, heatmap);
+                    heatmap = new ShowHeatmap(showId);
+                }
+                heatmap.addEpisode(
+                        resultSet.getString("episodeId"),
+                        resultSet.getString("title"),
+                        resultSet.getInt("season"),
+                        resultSet.getInt("episode"),
+                        resultSet.getObject("rating"),
+                        resultSet.getObject("votes")
+                );
+            }
+            if (heatmap != null) insertShowHeatmap(insertShowHeatmapStatement, heatmap);
+
+        }
+    }
+
+    private void insertShowHeatmap(PreparedStatement insertShowHeatmapStatement, ShowHeatmap heatmap) throws SQLException {
+        insertShowHeatmapStatement.setString(1, heatmap.getShowId());
+        insertShowHeatmapStatement.setBytes(2, heatmap.toJson(false).toString().getBytes(StandardCharsets.UTF_8));
+        insertShowHeatmapStatement.setBytes(3, heatmap.toJson(true).toString().getBytes(StandardCharsets.UTF_8));
+        insertShowHeatmapStatement.executeUpdate();
+    }
+
+    /**
+     * Creates an index for every sort column and sort order of {@link ImdbDatabase#search}.
+     * A search orders by (votes, id) in the sort order,
+     * or by (sortColumn, votes DESC, id DESC), so every sort column needs one index per sort order
+     * (DESC is a backwards scan of the ascending index).
+     * The filter columns are appended, so the filters can be checked without reading the table rows.
+     * Searches only return rows with votes, so the other rows are left out of the indices.
+     */
+    private void createSearchIndices(Statement statement, String tableName, String idColumn) throws SQLException {
+        String[] filterColumns = {"rating", "startYear", "duration", "genreMask"};
+
+        for (String sortColumn : SearchParameters.SORT_COLUMNS) {
+            String indexName = tableName + Character.toUpperCase(sortColumn.charAt(0)) + sortColumn.substring(1) + "Index";
+
+            List<String> keyColumns = sortColumn.equals("votes")
+                    ? List.of("votes", idColumn)
+                    : List.of(sortColumn, "votes", idColumn);
+            String includedColumns = Arrays.stream(filterColumns)
+                    .filter(column -> !column.equals(sortColumn))
+                    .collect(Collectors.joining(", "));
+
+            Utils.log("creating " + indexName + "..");
+            String createIndexSql = "CREATE INDEX %s ON %s(%s, %s) WHERE votes IS NOT NULL".formatted(
+                    indexName, tableName, String.join(", ", keyColumns), includedColumns
+            );
+            statement.executeUpdate(createIndexSql);
+
+            if (!sortColumn.equals("votes")) {
+                Utils.log("creating " + indexName.replace("Index", "AscIndex") + "..");
+                String createAscIndexSql = "CREATE INDEX %sAscIndex ON %s(%s, votes DESC, %s DESC, %s) WHERE votes IS NOT NULL".formatted(
+                        indexName.replace("Index", ""), tableName, sortColumn, idColumn, includedColumns
+                );
+                statement.executeUpdate(createAscIndexSql);
+            }
+        }
+    }
+
 }
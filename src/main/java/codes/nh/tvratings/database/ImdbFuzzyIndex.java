@@ -0,0 +1,238 @@
+package codes.nh.tvratings.database;
+
+import codes.nh.tvratings.utils.Utils;
+import org.json.JSONObject;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An in-memory trigram index of the normalized titles of all shows with votes for typo-tolerant title searches.
+ * Every trigram has a sorted posting list of the shows whose title contains it, stored in one primitive array.
+ * A query counts the shared trigrams per show (every edit changes at most 3 trigrams, so a title that matches
+ * with k edits shares at least trigrams - 3k trigrams with the query) and then computes the edit distance
+ * between the query and the best matching part of each candidate title.
+ */
+public class ImdbFuzzyIndex {
+
+    /**
+     * Shorter queries are too unspecific for typo-tolerant matching.
+     */
+    public static final int MIN_QUERY_LENGTH = 3;
+
+    private final String[] showIds;
+
+    private final int[] votes;
+
+    private final String[] normalizedTitles;
+
+    private final Map<String, Integer> trigramIds;
+
+    /**
+     * The posting list of trigram i is postings[postingOffsets[i]] until postings[postingOffsets[i + 1]].
+     */
+    private final int[] postingOffsets;
+
+    private final int[] postings;
+
+    /**
+     * The number of shared trigrams per show, reset after every query.
+     */
+    private final ThreadLocal<int[]> sharedTrigramCounts;
+
+    private ImdbFuzzyIndex(String[] showIds, int[] votes, String[] normalizedTitles, Map<String, Integer> trigramIds, int[] postingOffsets, int[] postings) {
+        this.showIds = showIds;
+        this.votes = votes;
+        this.normalizedTitles = normalizedTitles;
+        this.trigramIds = trigramIds;
+        this.postingOffsets = postingOffsets;
+        this.postings = postings;
+        this.sharedTrigramCounts = ThreadLocal.withInitial(() -> new int[showIds.length]);
+    }
+
+    /**
+     * Loads the titles of all shows that have votes into memory.
+     *
+     * @param connection The connection to an IMDb database.
+     * @return The fuzzy index.
+     * @throws SQLException If a database error occurs.
+     */
+    public static ImdbFuzzyIndex load(Connection connection) throws SQLException {
+        long startTime = System.currentTimeMillis();
+        Utils.log("loading fuzzy index..");
+
+        List<String> showIds = new ArrayList<>();
+        List<Integer> votes = new ArrayList<>();
+        List<String> normalizedTitles = new ArrayList<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT showId, title, votes FROM shows WHERE votes IS NOT NULL AND title IS NOT NULL");) {
+            while (resultSet.next()) {
+                showIds.add(resultSet.getString(1));
+                normalizedTitles.add(ImdbAutocompleteIndex.normalize(resultSet.getString(2)));
+                votes.add(resultSet.getInt(3));
+            }
+        }
+
+        //(trigram id << 32 | show) for every distinct trigram of every title
+        Map<String, Integer> trigramIds = new HashMap<>();
+        long[] entries = new long[1024];
+        int entryCount = 0;
+        for (int show = 0; show < normalizedTitles.size(); show++) {
+            for (String trigram : trigrams(normalizedTitles.get(show))) {
+                int trigramId = trigramIds.computeIfAbsent(trigram, t -> trigramIds.size());
+                if (entryCount == entries.length) entries = Arrays.copyOf(entries, entries.length * 2);
+                entries[entryCount++] = ((long) trigramId << 32) | show;
+            }
+        }
+        Arrays.sort(entries, 0, entryCount);
+
+        int[] postingOffsets = new int[trigramIds.size() + 1];
+        int[] postings = new int[entryCount];
+        for (int i = 0; i < entryCount; i++) {
+            postingOffsets[(int) (entries[i] >>> 32) + 1]++;
+            postings[i] = (int) entries[i];
+        }
+        for (int i = 1; i < postingOffsets.length; i++) {
+            postingOffsets[i] += postingOffsets[i - 1];
+        }
+
+        ImdbFuzzyIndex index = new ImdbFuzzyIndex(
+                showIds.toArray(String[]::new),
+                votes.stream().mapToInt(Integer::intValue).toArray(),
+                normalizedTitles.toArray(String[]::new),
+                trigramIds,
+                postingOffsets,
+                postings
+        );
+
+        long time = System.currentTimeMillis() - startTime;
+        Utils.log("loaded fuzzy index (" + showIds.size() + " shows, " + trigramIds.size() + " trigrams, " + entryCount + " postings) in " + time + " ms");
+
+        return index;
+    }
+
+    /**
+     * @param string A normalized string.
+     * @return The distinct trigrams of the string padded with spaces.
+     */
+    private static Set<String> trigrams(String string) {
+        String paddedString = " " + string + " ";
+        Set<String> trigrams = new LinkedHashSet<>();
+        for (int i = 0; i + 3 <= paddedString.length(); i++) {
+            trigrams.add(paddedString.substring(i, i + 3));
+        }
+        return trigrams;
+    }
+
+    /**
+     * @param queryLength The length of the normalized query.
+     * @return The maximum number of edits (insertions, deletions, substitutions) for a match.
+     */
+    private static int maxDistance(int queryLength) {
+        return queryLength <= 5 ? 1 : 2;
+    }
+
+    /**
+     * @param query      The title search, e.g. "breking bad".
+     * @param maxResults The maximum number of shows.
+     * @return The ids of the shows whose title contains the query with a bounded number of edits,
+     * ordered by the number of edits and then by votes,
+     * or null if the query is shorter than {@link #MIN_QUERY_LENGTH}.
+     */
+    public List<String> search(String query, int maxResults) {
+        String normalizedQuery = ImdbAutocompleteIndex.normalize(query);
+        if (normalizedQuery.length() < MIN_QUERY_LENGTH) return null;
+
+        int maxDistance = maxDistance(normalizedQuery.length());
+
+        //trigrams of a substring don't include the padding of the title
+        Set<String> queryTrigrams = trigrams(normalizedQuery);
+        int minSharedTrigrams = Math.max(1, queryTrigrams.size() - 2 - 3 * maxDistance);
+
+        //count the shared trigrams
+
+        int[] counts = sharedTrigramCounts.get();
+        List<Integer> candidates = new ArrayList<>();
+        List<Integer> touchedShows = new ArrayList<>();
+        for (String trigram : queryTrigrams) {
+            Integer trigramId = trigramIds.get(trigram);
+            if (trigramId == null) continue;
+            for (int i = postingOffsets[trigramId]; i < postingOffsets[trigramId + 1]; i++) {
+                int show = postings[i];
+                if (counts[show] == 0) touchedShows.add(show);
+                counts[show]++;
+                if (counts[show] == minSharedTrigrams) candidates.add(show);
+            }
+        }
+        for (int show : touchedShows) {
+            counts[show] = 0;
+        }
+
+        //verify the candidates
+
+        List<long[]> matches = new ArrayList<>(); //(distance, show)
+        for (int show : candidates) {
+            int distance = substringDistance(normalizedQuery, normalizedTitles[show]);
+            if (distance <= maxDistance) {
+                matches.add(new long[]{distance, show});
+            }
+        }
+        matches.sort((match1, match2) -> {
+            if (match1[0] != match2[0]) return Long.compare(match1[0], match2[0]);
+            return Integer.compare(votes[(int) match2[1]], votes[(int) match1[1]]);
+        });
+
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < matches.size() && i < maxResults; i++) {
+            result.add(showIds[(int) matches.get(i)[1]]);
+        }
+        return result;
+    }
+
+    /**
+     * The Levenshtein distance between the query and the most similar substring of the title
+     * (the substring can start and end anywhere for free).
+     */
+    private static int substringDistance(String query, String title) {
+        int m = query.length();
+        int[] previousColumn = new int[m + 1];
+        int[] column = new int[m + 1];
+        for (int i = 0; i <= m; i++) {
+            previousColumn[i] = i;
+        }
+
+        int distance = previousColumn[m];
+        for (int j = 1; j <= title.length(); j++) {
+            column[0] = 0;
+            char titleChar = title.charAt(j - 1);
+            for (int i = 1; i <= m; i++) {
+                int substitution = previousColumn[i - 1] + (query.charAt(i - 1) == titleChar ? 0 : 1);
+                column[i] = Math.min(substitution, Math.min(previousColumn[i], column[i - 1]) + 1);
+            }
+            distance = Math.min(distance, column[m]);
+
+            int[] swap = previousColumn;
+            previousColumn = column;
+            column = swap;
+        }
+        return distance;
+    }
+
+    public JSONObject getStatsJson() {
+        JSONObject statsJson = new JSONObject();
+        statsJson.put("shows", showIds.length);
+        statsJson.put("trigrams", trigramIds.size());
+        statsJson.put("postings", postings.length);
+        return statsJson;
+    }
+
+}
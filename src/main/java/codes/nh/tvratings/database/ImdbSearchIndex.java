@@ -0,0 +1,533 @@
+package codes.nh.tvratings.database;
+
+import codes.nh.tvratings.utils.Utils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * An in-memory copy of the searchable rows of the "shows" and "episodes" tables,
+ * stored in primitive column arrays, that answers {@link ImdbDatabase#search} requests without querying SQLite.
+ * Every sort column/order combination has a presorted row order, so a search is a single scan that stops
+ * as soon as the requested page is filled.
+ */
+public class ImdbSearchIndex {
+
+    //sentinel for NULL values in the primitive columns (SQLite sorts NULL before every other value)
+    private static final short NULL_SHORT = Short.MIN_VALUE;
+
+    private static final int NULL_INT = Integer.MIN_VALUE;
+
+    /**
+     * The genre of every bit of the genre masks (null if the bit is unused).
+     */
+    private final String[] genreNames;
+
+    /**
+     * The used bits, ordered by the name of their genre (like the genres of the SQL results).
+     */
+    private final int[] genreBitsByName;
+
+    private final Table shows;
+
+    private final Table episodes;
+
+    private ImdbSearchIndex(String[] genreNames, Table shows, Table episodes) {
+        this.genreNames = genreNames;
+        this.genreBitsByName = IntStream.range(0, genreNames.length)
+                .filter(bit -> genreNames[bit] != null)
+                .boxed()
+                .sorted(Comparator.comparing(bit -> genreNames[bit]))
+                .mapToInt(Integer::intValue)
+                .toArray();
+        this.shows = shows;
+        this.episodes = episodes;
+    }
+
+    /**
+     * Loads all shows and episodes that have votes into memory.
+     *
+     * @param connection The connection to an IMDb database.
+     * @return The search index.
+     * @throws SQLException If a database error occurs or there are too many genres to fit in a bitmask.
+     */
+    public static ImdbSearchIndex load(Connection connection) throws SQLException {
+        long startTime = System.currentTimeMillis();
+        Utils.log("loading search index..");
+
+        try (Statement statement = connection.createStatement();) {
+
+            //databases created by older versions of the importer have no genreMask columns
+            boolean hasGenreMasks;
+            try (ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM sqlite_master WHERE name = 'genreBits'");) {
+                resultSet.next();
+                hasGenreMasks = resultSet.getInt(1) > 0;
+            }
+
+            //genres (the bits of the genreBits table, incremental updates add new genres at the end,
+            //without the table the i-th genre in alphabetical order gets bit i)
+
+            String genreBitsQuery = hasGenreMasks
+                    ? "SELECT genre, bit FROM genreBits"
+                    : "SELECT genre, ROW_NUMBER() OVER (ORDER BY genre) - 1 FROM (SELECT DISTINCT genre FROM genres)";
+            String[] genreNames = new String[Integer.SIZE];
+            Map<String, Integer> genreBits = new HashMap<>();
+            try (ResultSet resultSet = statement.executeQuery(genreBitsQuery);) {
+                while (resultSet.next()) {
+                    String genre = resultSet.getString(1);
+                    int bit = resultSet.getInt(2);
+                    if (bit < 0 || bit >= Integer.SIZE) {
+                        throw new SQLException("genre " + genre + " doesn't fit in a genre bitmask: bit " + bit);
+                    }
+                    genreNames[bit] = genre;
+                    genreBits.put(genre, bit);
+                }
+            }
+
+            Map<String, Integer> showGenreMasks = new HashMap<>();
+            if (!hasGenreMasks) {
+                try (ResultSet resultSet = statement.executeQuery("SELECT showId, genre FROM genres");) {
+                    while (resultSet.next()) {
+                        int bit = 1 << genreBits.get(resultSet.getString(2));
+                        showGenreMasks.merge(resultSet.getString(1), bit, (a, b) -> a | b);
+                    }
+                }
+            }
+            String genreMaskColumn = hasGenreMasks ? "genreMask" : "NULL";
+
+            //shows
+
+            String showsQuery = "SELECT showId, NULL, title, startYear, endYear, NULL, NULL, duration, rating, votes, " + genreMaskColumn + " FROM shows WHERE votes IS NOT NULL";
+            Table shows = Table.read(statement, showsQuery, showGenreMasks, false, hasGenreMasks);
+
+            //episodes
+
+            String episodesQuery = "SELECT episodeId, showId, title, startYear, NULL, season, episode, duration, rating, votes, " + genreMaskColumn + " FROM episodes WHERE votes IS NOT NULL";
+            Table episodes = Table.read(statement, episodesQuery, showGenreMasks, true, hasGenreMasks);
+
+            long time = System.currentTimeMillis() - startTime;
+            Utils.log("loaded search index (" + shows.size + " shows, " + episodes.size + " episodes) in " + time + " ms");
+
+            return new ImdbSearchIndex(genreNames, shows, episodes);
+        }
+    }
+
+    /**
+     * Searches the index. Behaves like the SQL query built by {@link ImdbDatabase#search}.
+     *
+     * @param parameters The search parameters.
+     * @return The page of results in the same JSON format as the SQL query,
+     * or null if the parameters contain values that can only be interpreted by SQLite.
+     */
+    public JSONArray search(SearchParameters parameters) {
+
+        Filter filter = Filter.of(parameters, genreNames);
+        if (filter == null) return null;
+
+        Table table = parameters.isEpisodes() ? episodes : shows;
+        int[] order = table.getOrder(parameters.sortColumn(), parameters.isAscending());
+
+        int start = 0;
+        if (parameters.cursor() != null) {
+            try {
+                start = table.seek(order, parameters.sortColumn(), parameters.isAscending(), parameters.cursor());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        JSONArray resultJson = new JSONArray();
+        int skip = parameters.offset();
+        for (int i = start; i < order.length && resultJson.length() < parameters.pageLimit(); i++) {
+            int row = order[i];
+            if (!filter.matches(table, row)) continue;
+            if (skip > 0) {
+                skip--;
+                continue;
+            }
+            resultJson.put(table.toJson(row, genreNames, genreBitsByName));
+        }
+        return resultJson;
+    }
+
+    /**
+     * @return The number of shows and episodes in this index.
+     */
+    public int size() {
+        return shows.size + episodes.size;
+    }
+
+    //==========[Table]==========
+
+    private static class Table {
+
+        private final boolean episodes;
+
+        private final boolean hasGenreMaskColumn;
+
+        private final int size;
+
+        private final String[] ids;
+
+        private final String[] showIds;
+
+        private final String[] titles;
+
+        private final String[] lowerCaseTitles;
+
+        private final short[] startYears;
+
+        private final short[] endYears;
+
+        private final int[] seasons;
+
+        private final int[] episodeNumbers;
+
+        private final short[] durations;
+
+        private final double[] ratings;
+
+        private final int[] votes;
+
+        private final int[] genreMasks;
+
+        private final Map<String, int[]> orders = new HashMap<>();
+
+        private Table(boolean episodes, boolean hasGenreMaskColumn, int size) {
+            this.episodes = episodes;
+            this.hasGenreMaskColumn = hasGenreMaskColumn;
+            this.size = size;
+            this.ids = new String[size];
+            this.showIds = new String[size];
+            this.titles = new String[size];
+            this.lowerCaseTitles = new String[size];
+            this.startYears = new short[size];
+            this.endYears = new short[size];
+            this.seasons = new int[size];
+            this.episodeNumbers = new int[size];
+            this.durations = new short[size];
+            this.ratings = new double[size];
+            this.votes = new int[size];
+            this.genreMasks = new int[size];
+        }
+
+        /**
+         * Reads rows with the columns (id, showId, title, startYear, endYear, season, episode, duration, rating, votes, genreMask).
+         * If the database has no genreMask column, the masks are taken from the showGenreMasks.
+         */
+        private static Table read(Statement statement, String query, Map<String, Integer> showGenreMasks, boolean episodes, boolean hasGenreMasks) throws SQLException {
+            int size;
+            try (ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM (" + query + ")");) {
+                resultSet.next();
+                size = resultSet.getInt(1);
+            }
+
+            Table table = new Table(episodes, hasGenreMasks, size);
+            try (ResultSet resultSet = statement.executeQuery(query);) {
+                for (int i = 0; i < table.size && resultSet.next(); i++) {
+                    table.ids[i] = resultSet.getString(1);
+                    table.showIds[i] = episodes ? resultSet.getString(2) : table.ids[i];
+                    table.titles[i] = resultSet.getString(3);
+                    table.lowerCaseTitles[i] = table.titles[i] == null ? "" : toAsciiLowerCase(table.titles[i]);
+                    table.startYears[i] = toShort(resultSet.getObject(4));
+                    table.endYears[i] = toShort(resultSet.getObject(5));
+                    table.seasons[i] = toInt(resultSet.getObject(6));
+                    table.episodeNumbers[i] = toInt(resultSet.getObject(7));
+                    table.durations[i] = toShort(resultSet.getObject(8));
+                    table.ratings[i] = toDouble(resultSet.getObject(9));
+                    table.votes[i] = toInt(resultSet.getObject(10));
+                    table.genreMasks[i] = hasGenreMasks ? resultSet.getInt(11) : showGenreMasks.getOrDefault(table.showIds[i], 0);
+                }
+            }
+
+            for (String sortColumn : SearchParameters.SORT_COLUMNS) {
+                table.orders.put(sortColumn + " ASC", table.sort(sortColumn, true));
+                table.orders.put(sortColumn + " DESC", table.sort(sortColumn, false));
+            }
+            return table;
+        }
+
+        private int[] getOrder(String sortColumn, boolean ascending) {
+            return orders.get(sortColumn + (ascending ? " ASC" : " DESC"));
+        }
+
+        /**
+         * The sort key of a row: the sort column value (a number, or the title), the votes and the id.
+         * NULL is represented by NaN or null.
+         */
+        private record Key(double number, String text, int votes, String id) {
+        }
+
+        private Key getKey(String sortColumn, int row) {
+            return switch (sortColumn) {
+                case "rating" -> new Key(ratings[row], null, votes[row], ids[row]);
+                case "startYear" -> new Key(startYears[row] == NULL_SHORT ? Double.NaN : startYears[row], null, votes[row], ids[row]);
+                case "title" -> new Key(Double.NaN, titles[row], votes[row], ids[row]);
+                default -> new Key(votes[row], null, votes[row], ids[row]);
+            };
+        }
+
+        private static Key getKey(String sortColumn, SearchCursor cursor) {
+            String value = cursor.value();
+            if (sortColumn.equals("title")) {
+                return new Key(Double.NaN, value, cursor.votes(), cursor.id());
+            }
+            double number = value == null ? Double.NaN : Double.parseDouble(value);
+            return new Key(number, null, cursor.votes(), cursor.id());
+        }
+
+        /**
+         * Same order as the SQL query: by votes and id in the sort order,
+         * or by the sort column in the sort order, then by votes and id descending.
+         */
+        private static int compare(String sortColumn, boolean ascending, Key a, Key b) {
+            int direction = ascending ? 1 : -1;
+            if (sortColumn.equals("votes")) {
+                int result = Integer.compare(a.votes, b.votes);
+                if (result == 0) result = compareBinary(a.id, b.id);
+                return direction * result;
+            }
+
+            int result = sortColumn.equals("title") ? compareNullable(a.text, b.text) : compareNullable(a.number, b.number);
+            if (result != 0) return direction * result;
+
+            result = Integer.compare(b.votes, a.votes);
+            if (result == 0) result = compareBinary(b.id, a.id);
+            return result;
+        }
+
+        private static int compareNullable(String a, String b) {
+            if (a == null || b == null) return a == null ? (b == null ? 0 : -1) : 1;
+            return compareBinary(a, b);
+        }
+
+        /**
+         * Compares like SQLite's BINARY collation (UTF-8 bytes), which is the code point order.
+         * {@link String#compareTo} compares UTF-16 chars, which differs for characters outside the BMP.
+         */
+        private static int compareBinary(String a, String b) {
+            int i = 0;
+            int j = 0;
+            while (i < a.length() && j < b.length()) {
+                int codePointA = a.codePointAt(i);
+                int codePointB = b.codePointAt(j);
+                if (codePointA != codePointB) return Integer.compare(codePointA, codePointB);
+                i += Character.charCount(codePointA);
+                j += Character.charCount(codePointB);
+            }
+            return Integer.compare(a.length() - i, b.length() - j);
+        }
+
+        private static int compareNullable(double a, double b) {
+            if (Double.isNaN(a) || Double.isNaN(b)) return Double.isNaN(a) ? (Double.isNaN(b) ? 0 : -1) : 1;
+            return Double.compare(a, b);
+        }
+
+        private int[] sort(String sortColumn, boolean ascending) {
+            Key[] keys = new Key[size];
+            for (int row = 0; row < size; row++) {
+                keys[row] = getKey(sortColumn, row);
+            }
+            return IntStream.range(0, size).boxed()
+                    .sorted((a, b) -> compare(sortColumn, ascending, keys[a], keys[b]))
+                    .mapToInt(Integer::intValue)
+                    .toArray();
+        }
+
+        /**
+         * @return The position of the first row in the order that comes after the cursor (binary search).
+         */
+        private int seek(int[] order, String sortColumn, boolean ascending, SearchCursor cursor) {
+            Key cursorKey = getKey(sortColumn, cursor);
+            int low = 0;
+            int high = order.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (compare(sortColumn, ascending, getKey(sortColumn, order[middle]), cursorKey) <= 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        private JSONObject toJson(int row, String[] genreNames, int[] genreBitsByName) {
+            JSONObject rowJson = new JSONObject();
+            if (episodes) {
+                rowJson.put("episodeId", ids[row]);
+                rowJson.put("showId", showIds[row]);
+            } else {
+                rowJson.put("showId", ids[row]);
+            }
+            rowJson.put("title", titles[row]);
+            putIfNotNull(rowJson, "startYear", startYears[row]);
+            if (episodes) {
+                putIfNotNull(rowJson, "season", seasons[row]);
+                putIfNotNull(rowJson, "episode", episodeNumbers[row]);
+            } else {
+                putIfNotNull(rowJson, "endYear", endYears[row]);
+            }
+            putIfNotNull(rowJson, "duration", durations[row]);
+            if (!Double.isNaN(ratings[row])) {
+                rowJson.put("rating", ratings[row]);
+            }
+            rowJson.put("votes", votes[row]);
+            if (hasGenreMaskColumn) {
+                rowJson.put("genreMask", genreMasks[row]);
+            }
+
+            //GROUP_CONCAT of no genres is NULL, so the key is omitted
+            int genreMask = genreMasks[row];
+            if (genreMask != 0) {
+                List<String> genres = new ArrayList<>();
+                for (int bit : genreBitsByName) {
+                    if ((genreMask & (1 << bit)) != 0) genres.add(genreNames[bit]);
+                }
+                rowJson.put("genres", String.join(",", genres));
+            }
+            return rowJson;
+        }
+
+        private static void putIfNotNull(JSONObject json, String key, int value) {
+            if (value != NULL_INT && value != NULL_SHORT) json.put(key, value);
+        }
+
+    }
+
+    //==========[Filter]==========
+
+    private record Filter(
+            String[] titleParts,
+            int minVotes, int maxVotes,
+            double minRating, double maxRating,
+            int minYear, int maxYear,
+            int minDuration, int maxDuration,
+            int genreMask
+    ) {
+
+        /**
+         * @return The filter, or null if a value can't be parsed.
+         */
+        private static Filter of(SearchParameters parameters, String[] genreNames) {
+            try {
+
+                String[] titleParts = null;
+                if (parameters.titleSearch() != null) {
+                    //'_' is a wildcard in LIKE patterns
+                    if (parameters.titleSearch().contains("_")) return null;
+                    titleParts = toAsciiLowerCase(parameters.titleSearch()).split("\\W+");
+                }
+
+                int genreMask = 0;
+                if (parameters.genres() != null) {
+                    for (String genre : parameters.genres().split(",")) {
+                        int bit = indexOfIgnoreCase(genreNames, genre);
+                        if (bit == -1) return null;
+                        genreMask |= 1 << bit;
+                    }
+                }
+
+                return new Filter(
+                        titleParts,
+                        parseInt(parameters.minVotes(), Integer.MIN_VALUE), parseInt(parameters.maxVotes(), Integer.MAX_VALUE),
+                        parseDouble(parameters.minRating(), Double.NEGATIVE_INFINITY), parseDouble(parameters.maxRating(), Double.POSITIVE_INFINITY),
+                        parseInt(parameters.minYear(), Integer.MIN_VALUE), parseInt(parameters.maxYear(), Integer.MAX_VALUE),
+                        parseInt(parameters.minDuration(), Integer.MIN_VALUE), parseInt(parameters.maxDuration(), Integer.MAX_VALUE),
+                        genreMask
+                );
+
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        private boolean matches(Table table, int row) {
+            int votes = table.votes[row];
+            if (votes < minVotes || votes > maxVotes) return false;
+
+            if (minRating != Double.NEGATIVE_INFINITY || maxRating != Double.POSITIVE_INFINITY) {
+                double rating = table.ratings[row];
+                if (Double.isNaN(rating) || rating < minRating || rating > maxRating) return false;
+            }
+
+            //comparisons with NULL are never true
+            if (minYear != Integer.MIN_VALUE || maxYear != Integer.MAX_VALUE) {
+                short year = table.startYears[row];
+                if (year == NULL_SHORT || year < minYear || year > maxYear) return false;
+            }
+
+            if (minDuration != Integer.MIN_VALUE || maxDuration != Integer.MAX_VALUE) {
+                short duration = table.durations[row];
+                if (duration == NULL_SHORT || duration < minDuration || duration > maxDuration) return false;
+            }
+
+            if ((table.genreMasks[row] & genreMask) != genreMask) return false;
+
+            if (titleParts != null) {
+                String title = table.lowerCaseTitles[row];
+                int position = 0;
+                for (String titlePart : titleParts) {
+                    int index = title.indexOf(titlePart, position);
+                    if (index == -1) return false;
+                    position = index + titlePart.length();
+                }
+            }
+
+            return true;
+        }
+
+        private static int parseInt(String value, int defaultValue) {
+            return value == null ? defaultValue : Integer.parseInt(value.trim());
+        }
+
+        private static double parseDouble(String value, double defaultValue) {
+            return value == null ? defaultValue : Double.parseDouble(value.trim());
+        }
+
+        private static int indexOfIgnoreCase(String[] array, String element) {
+            for (int i = 0; i < array.length; i++) {
+                if (array[i] != null && array[i].equalsIgnoreCase(element)) return i;
+            }
+            return -1;
+        }
+
+    }
+
+    //==========[Utils]==========
+
+    private static short toShort(Object value) {
+        return value == null ? NULL_SHORT : ((Number) value).shortValue();
+    }
+
+    private static double toDouble(Object value) {
+        return value == null ? Double.NaN : ((Number) value).doubleValue();
+    }
+
+    private static int toInt(Object value) {
+        return value == null ? NULL_INT : ((Number) value).intValue();
+    }
+
+    /**
+     * SQLite's LIKE is only case-insensitive for ASCII characters.
+     */
+    private static String toAsciiLowerCase(String string) {
+        char[] chars = string.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            char c = chars[i];
+            if (c >= 'A' && c <= 'Z') chars[i] = (char) (c + ('a' - 'A'));
+        }
+        return new String(chars);
+    }
+
+}
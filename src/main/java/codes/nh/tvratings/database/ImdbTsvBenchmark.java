@@ -0,0 +1,100 @@
+package codes.nh.tvratings.database;
+
+import codes.nh.tvratings.utils.Utils;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Compares the throughput of parsing a dataset line by line with {@link String#split} (the previous import)
+ * with {@link ImdbTsvReader}. Both parsers read every column and replace \N by null.
+ */
+public class ImdbTsvBenchmark {
+
+    private interface Parser {
+        long parse(InputStream inputStream) throws IOException;
+    }
+
+    /**
+     * Parses the dataset with both parsers and logs their time and allocated memory.
+     *
+     * @param source The path or url of a dataset (.tsv or .tsv.gz).
+     * @throws IOException If the dataset can't be read.
+     */
+    public static void run(String source) throws IOException {
+        Utils.log("comparing tsv parsers on " + source + "..");
+        //the first run warms up the JIT and the file cache
+        for (int run = 1; run <= 2; run++) {
+            measure(source, "split", ImdbTsvBenchmark::parseWithSplit);
+            measure(source, "ImdbTsvReader", ImdbTsvBenchmark::parseWithTsvReader);
+        }
+    }
+
+    private static void measure(String source, String parserName, Parser parser) throws IOException {
+        long startAllocatedBytes = getAllocatedBytes();
+        long startTime = System.nanoTime();
+
+        long rows;
+        try (InputStream inputStream = open(source)) {
+            rows = parser.parse(inputStream);
+        }
+
+        long timeMs = Math.max(1, (System.nanoTime() - startTime) / 1_000_000);
+        long allocatedMegabytes = (getAllocatedBytes() - startAllocatedBytes) / 1024 / 1024;
+        Utils.log(parserName + ": " + rows + " rows, " + (rows * 1000 / timeMs) + " rows/s, " + allocatedMegabytes + " MB allocated in " + timeMs + " ms");
+    }
+
+    private static InputStream open(String source) throws IOException {
+        InputStream inputStream = source.startsWith("http://") || source.startsWith("https://") ?
+                new URL(source).openStream() :
+                new FileInputStream(source);
+        return source.endsWith(".gz") ? new GZIPInputStream(inputStream, 64 * 1024) : inputStream;
+    }
+
+    private static long parseWithSplit(InputStream inputStream) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8), 64 * 1024);
+        long rows = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] values = line.split("\t");
+            for (int i = 0; i < values.length; i++) {
+                if (values[i].equals("\\N")) {
+                    values[i] = null;
+                }
+            }
+            rows++;
+        }
+        return rows;
+    }
+
+    private static long parseWithTsvReader(InputStream inputStream) throws IOException {
+        ImdbTsvReader reader = new ImdbTsvReader(inputStream);
+        long rows = 0;
+        while (reader.nextRow()) {
+            String[] values = new String[reader.getColumnCount()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = reader.getString(i);
+            }
+            rows++;
+        }
+        return rows;
+    }
+
+    /**
+     * @return The number of bytes allocated by the current thread so far, or 0 if the JVM doesn't support it.
+     */
+    private static long getAllocatedBytes() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threadMXBean) {
+            return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+}
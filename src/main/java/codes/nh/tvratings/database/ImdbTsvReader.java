@@ -0,0 +1,207 @@
+package codes.nh.tvratings.database;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads the rows of an IMDb dataset (tab separated values, one row per line, \N for missing values)
+ * directly from the bytes of a reused buffer.
+ * A row is only split into the start and end offsets of its fields, so no line, field array or field
+ * string is created unless a field is explicitly read with {@link #getString}.
+ * The fields of the current row are only valid until the next call of {@link #nextRow}.
+ */
+public class ImdbTsvReader implements Closeable {
+
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream inputStream;
+
+    private byte[] buffer;
+
+    /**
+     * The start of the unread bytes in the buffer.
+     */
+    private int position = 0;
+
+    /**
+     * The end of the valid bytes in the buffer.
+     */
+    private int limit = 0;
+
+    private boolean endOfStream = false;
+
+    private int[] fieldStarts = new int[16];
+
+    private int[] fieldEnds = new int[16];
+
+    private int fieldCount = 0;
+
+    public ImdbTsvReader(InputStream inputStream) {
+        this(inputStream, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param inputStream The (decompressed) dataset.
+     * @param bufferSize  The initial size of the buffer, it grows if a line is longer.
+     */
+    public ImdbTsvReader(InputStream inputStream, int bufferSize) {
+        this.inputStream = inputStream;
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * Reads the next line.
+     *
+     * @return False if there are no more lines.
+     * @throws IOException If the input stream can't be read.
+     */
+    public boolean nextRow() throws IOException {
+        int lineStart = position;
+        int lineEnd = position;
+        while (true) {
+            while (lineEnd < limit && buffer[lineEnd] != '\n') lineEnd++;
+            if (lineEnd < limit) break;
+
+            if (endOfStream) {
+                //last line without a line break
+                if (lineEnd == lineStart) return false;
+                break;
+            }
+
+            if (limit == buffer.length) {
+                if (lineStart > 0) {
+                    //move the beginning of the line to the start of the buffer
+                    System.arraycopy(buffer, lineStart, buffer, 0, limit - lineStart);
+                    limit -= lineStart;
+                    lineEnd -= lineStart;
+                    lineStart = 0;
+                } else {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+            }
+
+            int read = inputStream.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                endOfStream = true;
+            } else {
+                limit += read;
+            }
+        }
+        position = lineEnd < limit ? lineEnd + 1 : lineEnd;
+
+        if (lineEnd > lineStart && buffer[lineEnd - 1] == '\r') lineEnd--;
+
+        fieldCount = 0;
+        int fieldStart = lineStart;
+        for (int i = lineStart; i < lineEnd; i++) {
+            if (buffer[i] == '\t') {
+                addField(fieldStart, i);
+                fieldStart = i + 1;
+            }
+        }
+        addField(fieldStart, lineEnd);
+        return true;
+    }
+
+    private void addField(int start, int end) {
+        if (fieldCount == fieldStarts.length) {
+            fieldStarts = Arrays.copyOf(fieldStarts, fieldCount * 2);
+            fieldEnds = Arrays.copyOf(fieldEnds, fieldCount * 2);
+        }
+        fieldStarts[fieldCount] = start;
+        fieldEnds[fieldCount] = end;
+        fieldCount++;
+    }
+
+    /**
+     * @return The number of fields of the current row.
+     */
+    public int getColumnCount() {
+        return fieldCount;
+    }
+
+    /**
+     * @param column The index of the column.
+     * @return True if the field is \N or the row has fewer columns.
+     */
+    public boolean isNull(int column) {
+        if (column >= fieldCount) return true;
+        int start = fieldStarts[column];
+        return fieldEnds[column] - start == 2 && buffer[start] == '\\' && buffer[start + 1] == 'N';
+    }
+
+    /**
+     * @param column The index of the column.
+     * @return The field as a string, or null if it is missing.
+     */
+    public String getString(int column) {
+        if (isNull(column)) return null;
+        int start = fieldStarts[column];
+        return new String(buffer, start, fieldEnds[column] - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param column    The index of the column.
+     * @param nullValue The value if the field is missing or not a non-negative integer.
+     * @return The field as an int.
+     */
+    public int getInt(int column, int nullValue) {
+        if (isNull(column)) return nullValue;
+        return parseDigits(fieldStarts[column], fieldEnds[column], nullValue);
+    }
+
+    /**
+     * @param column The index of the column.
+     * @return The numeric part of an IMDb id (tt0903747 -> 903747), or -1 if it is missing or invalid.
+     */
+    public int getTconst(int column) {
+        if (isNull(column)) return -1;
+        int start = fieldStarts[column];
+        int end = fieldEnds[column];
+        if (end - start < 3 || buffer[start] != 't' || buffer[start + 1] != 't') return -1;
+        return parseDigits(start + 2, end, -1);
+    }
+
+    private int parseDigits(int start, int end, int invalidValue) {
+        if (start == end) return invalidValue;
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9 || value > (Integer.MAX_VALUE - 9) / 10) return invalidValue;
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * @param column The index of the column.
+     * @param value  The expected UTF-8 bytes.
+     * @return True if the field has exactly these bytes.
+     */
+    public boolean fieldEquals(int column, byte[] value) {
+        if (column >= fieldCount) return false;
+        int start = fieldStarts[column];
+        return Arrays.equals(buffer, start, fieldEnds[column], value, 0, value.length);
+    }
+
+    /**
+     * @param columnName The name of a column.
+     * @return The index of the column in the current (header) row.
+     * @throws IOException If there is no such column.
+     */
+    public int getColumnIndex(String columnName) throws IOException {
+        for (int column = 0; column < fieldCount; column++) {
+            if (columnName.equals(getString(column))) return column;
+        }
+        throw new IOException("column " + columnName + " not found");
+    }
+
+    @Override
+    public void close() throws IOException {
+        inputStream.close();
+    }
+
+}
@@ -0,0 +1,189 @@
+package codes.nh.tvratings.database;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+/**
+ * Writes the rows of a result set as a UTF-8 JSON array of objects directly to an output stream,
+ * without building a {@link org.json.JSONArray} and a string of the whole result first.
+ * The column names are resolved once. Like org.json, NULL values are left out.
+ */
+public class ResultSetJsonWriter {
+
+    /**
+     * @param rows    The number of written rows.
+     * @param lastRow The last written row, or null if there were no rows.
+     */
+    public record Result(int rows, JSONObject lastRow) {
+    }
+
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final OutputStream outputStream;
+
+    private final byte[] buffer = new byte[8192];
+
+    private int position = 0;
+
+    private ResultSetJsonWriter(OutputStream outputStream) {
+        this.outputStream = outputStream;
+    }
+
+    /**
+     * Writes all rows of the result set. The output stream is flushed, but not closed.
+     *
+     * @param resultSet    The result set.
+     * @param outputStream The output stream.
+     * @return The number of rows and the last row.
+     * @throws SQLException If a database error occurs.
+     * @throws IOException  If the output stream can't be written.
+     */
+    public static Result write(ResultSet resultSet, OutputStream outputStream) throws SQLException, IOException {
+        return new ResultSetJsonWriter(outputStream).writeRows(resultSet);
+    }
+
+    private Result writeRows(ResultSet resultSet) throws SQLException, IOException {
+        ResultSetMetaData metaData = resultSet.getMetaData();
+        int columnCount = metaData.getColumnCount();
+
+        //"columnName":
+        String[] columnNames = new String[columnCount];
+        byte[][] columnPrefixes = new byte[columnCount][];
+        for (int i = 0; i < columnCount; i++) {
+            columnNames[i] = metaData.getColumnName(i + 1);
+            columnPrefixes[i] = (JSONObject.quote(columnNames[i]) + ":").getBytes(StandardCharsets.UTF_8);
+        }
+
+        Object[] row = new Object[columnCount];
+        int rows = 0;
+
+        writeByte('[');
+        while (resultSet.next()) {
+            if (rows > 0) writeByte(',');
+            writeByte('{');
+            boolean firstValue = true;
+            for (int i = 0; i < columnCount; i++) {
+                Object value = resultSet.getObject(i + 1);
+                row[i] = value;
+                if (value == null) continue;
+                if (!firstValue) writeByte(',');
+                firstValue = false;
+                writeBytes(columnPrefixes[i]);
+                writeValue(value);
+            }
+            writeByte('}');
+            rows++;
+        }
+        writeByte(']');
+        flush();
+
+        JSONObject lastRow = null;
+        if (rows > 0) {
+            lastRow = new JSONObject();
+            for (int i = 0; i < columnCount; i++) {
+                lastRow.put(columnNames[i], row[i]);
+            }
+        }
+        return new Result(rows, lastRow);
+    }
+
+    private void writeValue(Object value) throws IOException {
+        if (value instanceof String string) {
+            writeString(string);
+        } else if (value instanceof Double || value instanceof Float) {
+            writeAscii(numberToString(((Number) value).doubleValue()));
+        } else if (value instanceof Number || value instanceof Boolean) {
+            writeAscii(value.toString());
+        } else {
+            writeString(value.toString());
+        }
+    }
+
+    /**
+     * Same format as org.json: no trailing zeros (9.0 -> 9), non-finite numbers are null.
+     */
+    private static String numberToString(double number) {
+        if (Double.isNaN(number) || Double.isInfinite(number)) return "null";
+        String string = Double.toString(number);
+        if (string.indexOf('.') > 0 && string.indexOf('e') < 0 && string.indexOf('E') < 0) {
+            int end = string.length();
+            while (string.charAt(end - 1) == '0') end--;
+            if (string.charAt(end - 1) == '.') end--;
+            string = string.substring(0, end);
+        }
+        return string;
+    }
+
+    private void writeString(String string) throws IOException {
+        writeByte('"');
+        int length = string.length();
+        for (int i = 0; i < length; i++) {
+            char c = string.charAt(i);
+            if (c == '"' || c == '\\') {
+                writeByte('\\');
+                writeByte(c);
+            } else if (c < 0x20) {
+                switch (c) {
+                    case '\n' -> writeAscii("\\n");
+                    case '\r' -> writeAscii("\\r");
+                    case '\t' -> writeAscii("\\t");
+                    case '\b' -> writeAscii("\\b");
+                    case '\f' -> writeAscii("\\f");
+                    default -> {
+                        writeAscii("\\u00");
+                        writeByte(HEX_DIGITS[c >> 4]);
+                        writeByte(HEX_DIGITS[c & 0xF]);
+                    }
+                }
+            } else if (c < 0x80) {
+                writeByte(c);
+            } else if (c < 0x800) {
+                writeByte(0xC0 | (c >> 6));
+                writeByte(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(string.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                writeByte(0xF0 | (codePoint >> 18));
+                writeByte(0x80 | ((codePoint >> 12) & 0x3F));
+                writeByte(0x80 | ((codePoint >> 6) & 0x3F));
+                writeByte(0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                writeByte('?');
+            } else {
+                writeByte(0xE0 | (c >> 12));
+                writeByte(0x80 | ((c >> 6) & 0x3F));
+                writeByte(0x80 | (c & 0x3F));
+            }
+        }
+        writeByte('"');
+    }
+
+    private void writeAscii(String string) throws IOException {
+        for (int i = 0; i < string.length(); i++) {
+            writeByte(string.charAt(i));
+        }
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        for (byte b : bytes) {
+            writeByte(b);
+        }
+    }
+
+    private void writeByte(int b) throws IOException {
+        if (position == buffer.length) flush();
+        buffer[position++] = (byte) b;
+    }
+
+    private void flush() throws IOException {
+        outputStream.write(buffer, 0, position);
+        outputStream.flush();
+        position = 0;
+    }
+
+}
@@ -0,0 +1,78 @@
+package codes.nh.tvratings.database;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * The sort key of the last row of a search page. The next page starts directly after it (keyset pagination),
+ * so deep pages don't have to skip all previous rows like LIMIT/OFFSET does.
+ *
+ * @param value The value of the sort column, or null if it is NULL.
+ * @param votes The votes (first tie-breaker).
+ * @param id    The show or episode id (second tie-breaker).
+ */
+public record SearchCursor(String value, int votes, String id) {
+
+    /**
+     * @param row        The last row of a search page.
+     * @param parameters The parameters of the search.
+     * @return The cursor pointing after the row.
+     */
+    public static SearchCursor of(JSONObject row, SearchParameters parameters) {
+        Object value = row.opt(parameters.sortColumn());
+        return new SearchCursor(
+                value == null ? null : value.toString(),
+                row.getInt("votes"),
+                row.getString(parameters.idColumn())
+        );
+    }
+
+    /**
+     * Encodes this cursor as an opaque string. The string is bound to the table and sort of the search.
+     *
+     * @param parameters The parameters of the search.
+     * @return The encoded cursor.
+     */
+    public String encode(SearchParameters parameters) {
+        JSONArray cursorJson = new JSONArray();
+        cursorJson.put(parameters.table());
+        cursorJson.put(parameters.sortColumn());
+        cursorJson.put(parameters.sortOrder());
+        cursorJson.put(value == null ? JSONObject.NULL : value);
+        cursorJson.put(votes);
+        cursorJson.put(id);
+        byte[] bytes = cursorJson.toString().getBytes(StandardCharsets.UTF_8);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    /**
+     * @param cursor     The encoded cursor sent by the client.
+     * @param table      The normalized table of the search.
+     * @param sortColumn The normalized sort column of the search.
+     * @param sortOrder  The normalized sort order of the search.
+     * @return The cursor, or null if the string is not a valid cursor for this table and sort.
+     */
+    public static SearchCursor decode(String cursor, String table, String sortColumn, String sortOrder) {
+        if (cursor == null) return null;
+        try {
+
+            byte[] bytes = Base64.getUrlDecoder().decode(cursor);
+            JSONArray cursorJson = new JSONArray(new String(bytes, StandardCharsets.UTF_8));
+
+            boolean sameSearch = cursorJson.getString(0).equals(table)
+                    && cursorJson.getString(1).equals(sortColumn)
+                    && cursorJson.getString(2).equals(sortOrder);
+            if (!sameSearch) return null;
+
+            String value = cursorJson.isNull(3) ? null : cursorJson.getString(3);
+            return new SearchCursor(value, cursorJson.getInt(4), cursorJson.getString(5));
+
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+}
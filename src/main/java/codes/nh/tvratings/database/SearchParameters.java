@@ -0,0 +1,166 @@
+package codes.nh.tvratings.database;
+
+import codes.nh.tvratings.utils.Utils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
+/**
+ * The normalized parameters of a {@link ImdbDatabase#search} request.
+ * Filter values are kept as the raw strings sent by the client,
+ * the table, sort column, sort order and paging are resolved to valid values.
+ * If a valid cursor is given, the page starts after it and the page number is ignored.
+ * Fuzzy searches are ordered by title similarity, so their cursor only points after a show in this order.
+ */
+public record SearchParameters(
+        String table,
+        String titleSearch,
+        String minVotes,
+        String maxVotes,
+        String minRating,
+        String maxRating,
+        String minYear,
+        String maxYear,
+        String minDuration,
+        String maxDuration,
+        String genres,
+        String sortColumn,
+        String sortOrder,
+        int pageNumber,
+        int pageLimit,
+        SearchCursor cursor,
+        boolean fuzzy
+) {
+
+    public static final String[] TABLES = {"shows", "episodes"};
+
+    public static final String[] SORT_COLUMNS = {"votes", "rating", "startYear", "title"};
+
+    public static final String[] SORT_ORDERS = {"DESC", "ASC"};
+
+    public static final int MAX_PAGE_LIMIT = 100;
+
+    public static SearchParameters of(
+            String type,
+            String titleSearch,
+            String minVotes,
+            String maxVotes,
+            String minRating,
+            String maxRating,
+            String minYear,
+            String maxYear,
+            String minDuration,
+            String maxDuration,
+            String genres,
+            String sortColumn,
+            String sortOrder,
+            String pageNumber,
+            String pageLimit,
+            String cursor,
+            String fuzzy
+    ) {
+
+        Integer finalPageNumber = Utils.stringToIntOrNull(pageNumber);
+        if (finalPageNumber == null || finalPageNumber < 0) {
+            finalPageNumber = 0;
+        }
+
+        Integer finalPageLimit = Utils.stringToIntOrNull(pageLimit);
+        if (finalPageLimit == null || finalPageLimit < 0 || finalPageLimit > MAX_PAGE_LIMIT) {
+            finalPageLimit = MAX_PAGE_LIMIT;
+        }
+
+        String finalTable = findElementInArray(TABLES, type);
+        String finalSortColumn = findElementInArray(SORT_COLUMNS, sortColumn);
+        String finalSortOrder = findElementInArray(SORT_ORDERS, sortOrder);
+
+        return new SearchParameters(
+                finalTable,
+                titleSearch,
+                minVotes,
+                maxVotes,
+                minRating,
+                maxRating,
+                minYear,
+                maxYear,
+                minDuration,
+                maxDuration,
+                genres,
+                finalSortColumn,
+                finalSortOrder,
+                finalPageNumber,
+                finalPageLimit,
+                SearchCursor.decode(cursor, finalTable, finalSortColumn, finalSortOrder),
+                Boolean.TRUE.equals(Utils.stringToBooleanOrNull(fuzzy))
+        );
+    }
+
+    public boolean isEpisodes() {
+        return table.equals("episodes");
+    }
+
+    /**
+     * @return The primary key column of the table.
+     */
+    public String idColumn() {
+        return isEpisodes() ? "episodeId" : "showId";
+    }
+
+    public boolean isAscending() {
+        return sortOrder.equals("ASC");
+    }
+
+    /**
+     * @return True if the title search should be typo-tolerant (only supported for shows).
+     */
+    public boolean isFuzzy() {
+        return fuzzy && !isEpisodes() && titleSearch != null;
+    }
+
+    public int offset() {
+        return cursor != null ? 0 : pageNumber * pageLimit;
+    }
+
+    /**
+     * @return A key that is equal for all parameters that produce the same search results
+     * (genres are case-insensitive and their order doesn't matter).
+     */
+    public String toCacheKey() {
+        return toKey(
+                table, titleSearch, minVotes, maxVotes, minRating, maxRating, minYear, maxYear, minDuration, maxDuration,
+                normalizeGenres(), sortColumn, sortOrder, offset(), pageLimit, cursor == null ? null : cursor.encode(this), isFuzzy()
+        );
+    }
+
+    /**
+     * @return A key that is equal for all parameters that match the same rows, regardless of sort and page.
+     */
+    public String toFacetsCacheKey() {
+        return toKey(
+                table, titleSearch, minVotes, maxVotes, minRating, maxRating, minYear, maxYear, minDuration, maxDuration,
+                normalizeGenres(), isFuzzy()
+        );
+    }
+
+    private String normalizeGenres() {
+        return genres == null ? null : Arrays.stream(genres.split(","))
+                .map(String::toLowerCase)
+                .sorted()
+                .collect(Collectors.joining(","));
+    }
+
+    private static String toKey(Object... values) {
+        JSONArray keyJson = new JSONArray();
+        for (Object value : values) {
+            keyJson.put(value == null ? JSONObject.NULL : value);
+        }
+        return keyJson.toString();
+    }
+
+    private static String findElementInArray(String[] array, String element) {
+        return Arrays.stream(array).filter(e -> e.equalsIgnoreCase(element)).findFirst().orElse(array[0]);
+    }
+
+}
@@ -0,0 +1,147 @@
+package codes.nh.tvratings.database;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The ratings of all episodes of a show as a dense season x episode matrix, which is much smaller than a list of
+ * episode objects:
+ * {"showId": "...", "seasons": [1, 2], "firstEpisodes": [1, 1], "ratings": [[9.0, null], [8.5]], "votes": [[100, null], [50]]}.
+ * ratings[i][j] belongs to episode firstEpisodes[i] + j of season seasons[i]; missing episodes and ratings are null.
+ * Optionally the matrix contains the "episodeIds" and "titles" in the same layout.
+ * The episodes have to be added ordered by season and episode.
+ */
+public class ShowHeatmap {
+
+    /**
+     * Episodes with a higher number (relative to the first episode of the season) are left out,
+     * so a wrong episode number can't blow up the matrix.
+     */
+    private static final int MAX_EPISODES_PER_SEASON = 10_000;
+
+    private final String showId;
+
+    private final List<Season> seasons = new ArrayList<>();
+
+    private static class Season {
+
+        private final int number;
+
+        private final int firstEpisode;
+
+        private final JSONArray episodeIds = new JSONArray();
+
+        private final JSONArray titles = new JSONArray();
+
+        private final JSONArray ratings = new JSONArray();
+
+        private final JSONArray votes = new JSONArray();
+
+        private Season(int number, int firstEpisode) {
+            this.number = number;
+            this.firstEpisode = firstEpisode;
+        }
+
+    }
+
+    public ShowHeatmap(String showId) {
+        this.showId = showId;
+    }
+
+    public String getShowId() {
+        return showId;
+    }
+
+    /**
+     * @param episodeId The id of the episode.
+     * @param title     The title or null.
+     * @param season    The season number.
+     * @param episode   The episode number.
+     * @param rating    The rating or null.
+     * @param votes     The votes or null.
+     */
+    public void addEpisode(String episodeId, String title, int season, int episode, Object rating, Object votes) {
+        Season currentSeason = seasons.isEmpty() ? null : seasons.get(seasons.size() - 1);
+        if (currentSeason == null || currentSeason.number != season) {
+            currentSeason = new Season(season, episode);
+            seasons.add(currentSeason);
+        }
+
+        int index = episode - currentSeason.firstEpisode;
+        //duplicate episode numbers: the first episode wins
+        if (index < currentSeason.ratings.length() || index >= MAX_EPISODES_PER_SEASON) return;
+
+        //fill missing episodes with null
+        while (currentSeason.ratings.length() < index) {
+            currentSeason.episodeIds.put(JSONObject.NULL);
+            currentSeason.titles.put(JSONObject.NULL);
+            currentSeason.ratings.put(JSONObject.NULL);
+            currentSeason.votes.put(JSONObject.NULL);
+        }
+
+        currentSeason.episodeIds.put(episodeId);
+        currentSeason.titles.put(title == null ? JSONObject.NULL : title);
+        currentSeason.ratings.put(rating == null ? JSONObject.NULL : rating);
+        currentSeason.votes.put(votes == null ? JSONObject.NULL : votes);
+    }
+
+    /**
+     * @param titles True if the episode ids and titles should be included.
+     * @return The heatmap in JSON format.
+     */
+    public JSONObject toJson(boolean titles) {
+        JSONArray seasonsJson = new JSONArray();
+        JSONArray firstEpisodesJson = new JSONArray();
+        JSONArray ratingsJson = new JSONArray();
+        JSONArray votesJson = new JSONArray();
+        JSONArray episodeIdsJson = new JSONArray();
+        JSONArray titlesJson = new JSONArray();
+        for (Season season : seasons) {
+            seasonsJson.put(season.number);
+            firstEpisodesJson.put(season.firstEpisode);
+            ratingsJson.put(season.ratings);
+            votesJson.put(season.votes);
+            episodeIdsJson.put(season.episodeIds);
+            titlesJson.put(season.titles);
+        }
+
+        JSONObject heatmapJson = new JSONObject();
+        heatmapJson.put("showId", showId);
+        heatmapJson.put("seasons", seasonsJson);
+        heatmapJson.put("firstEpisodes", firstEpisodesJson);
+        heatmapJson.put("ratings", ratingsJson);
+        heatmapJson.put("votes", votesJson);
+        if (titles) {
+            heatmapJson.put("episodeIds", episodeIdsJson);
+            heatmapJson.put("titles", titlesJson);
+        }
+        return heatmapJson;
+    }
+
+    /**
+     * Builds the heatmap from the result of {@link ImdbDatabase#getShowEpisodes}.
+     *
+     * @param showId       The id of the show.
+     * @param episodesJson The episodes ordered by season and episode.
+     * @return The heatmap.
+     */
+    public static ShowHeatmap of(String showId, JSONArray episodesJson) {
+        ShowHeatmap heatmap = new ShowHeatmap(showId);
+        for (int i = 0; i < episodesJson.length(); i++) {
+            JSONObject episodeJson = episodesJson.getJSONObject(i);
+            heatmap.addEpisode(
+                    episodeJson.getString("episodeId"),
+                    episodeJson.optString("title", null),
+                    episodeJson.getInt("season"),
+                    episodeJson.getInt("episode"),
+                    episodeJson.opt("rating"),
+                    episodeJson.opt("votes")
+            );
+        }
+        return heatmap;
+    }
+
+}
@@ -4,7 +4,12 @@ import codes.nh.tvratings.utils.Utils;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.sql.*;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -22,6 +27,14 @@ public abstract class SqliteDatabase {
 
     private Connection connection;
 
+    private static final int STATEMENT_CACHE_SIZE = 256;
+
+    private StatementCache statementCache;
+
+    private static final int RESULT_BUFFER_SIZE = 16 * 1024;
+
+    private ConnectionPool readConnectionPool;
+
     public SqliteDatabase(String databasePath) {
         this.databasePath = databasePath;
     }
@@ -38,6 +51,74 @@ public abstract class SqliteDatabase {
         return connection;
     }
 
+    /**
+     * @return The prepared statement cache of the connection,
+     * or null if {@link #connect()} wasn't or {@link #disconnect()} was called beforehand.
+     */
+    public StatementCache getStatementCache() {
+        return statementCache;
+    }
+
+    /**
+     * @return The pool of read-only connections,
+     * or null if {@link #openReadConnectionPool(int, long)} wasn't called.
+     */
+    public ConnectionPool getReadConnectionPool() {
+        return readConnectionPool;
+    }
+
+    /**
+     * Opens a pool of read-only connections that are used by all subsequent queries
+     * ({@link #queryAndConvertToJson}), so they can run in parallel.
+     * Updates still use the connection established by {@link #connect()}.
+     *
+     * @param size     The number of connections.
+     * @param mmapSize The maximum number of bytes of the database file that are memory-mapped by each connection.
+     * @throws Exception If not connected, the pool is already open or a database error occurs.
+     */
+    public void openReadConnectionPool(int size, long mmapSize) throws Exception {
+        if (connection == null) {
+            throw new Exception("not connected");
+        }
+        if (readConnectionPool != null) {
+            throw new Exception("read connection pool already open");
+        }
+
+        readConnectionPool = new ConnectionPool(databaseUrl + databasePath, size, mmapSize);
+
+        Utils.log("opened " + size + " read connections");
+    }
+
+    /**
+     * @return The counters of the statement caches and the read connection pool.
+     */
+    public JSONObject getStatsJson() {
+        List<StatementCache> statementCaches = new ArrayList<>();
+        if (statementCache != null) statementCaches.add(statementCache);
+        ConnectionPool readConnectionPool = this.readConnectionPool;
+        if (readConnectionPool != null) statementCaches.addAll(readConnectionPool.getStatementCaches());
+
+        JSONObject statementCacheJson = new JSONObject();
+        statementCacheJson.put("statements", statementCaches.stream().mapToInt(StatementCache::size).sum());
+        statementCacheJson.put("hits", statementCaches.stream().mapToLong(StatementCache::getHits).sum());
+        statementCacheJson.put("misses", statementCaches.stream().mapToLong(StatementCache::getMisses).sum());
+        statementCacheJson.put("evictions", statementCaches.stream().mapToLong(StatementCache::getEvictions).sum());
+
+        JSONObject statsJson = new JSONObject();
+        statsJson.put("statementCache", statementCacheJson);
+        if (readConnectionPool != null) {
+            JSONObject readConnectionPoolJson = new JSONObject();
+            readConnectionPoolJson.put("connections", readConnectionPool.size());
+            readConnectionPoolJson.put("idleConnections", readConnectionPool.getIdleConnections());
+            readConnectionPoolJson.put("borrows", readConnectionPool.getBorrows());
+            readConnectionPoolJson.put("waits", readConnectionPool.getWaits());
+            readConnectionPoolJson.put("totalWaitMs", readConnectionPool.getTotalWaitNanos() / 1_000_000);
+            readConnectionPoolJson.put("maxWaitMs", readConnectionPool.getMaxWaitNanos() / 1_000_000);
+            statsJson.put("readConnectionPool", readConnectionPoolJson);
+        }
+        return statsJson;
+    }
+
     /**
      * Establishes a new connection.
      *
@@ -52,6 +133,7 @@ public abstract class SqliteDatabase {
 
         Class.forName(databaseDriver);
         connection = DriverManager.getConnection(databaseUrl + databasePath);
+        statementCache = new StatementCache(connection, STATEMENT_CACHE_SIZE);
 
         Utils.log("connected to database");
     }
@@ -68,12 +150,33 @@ public abstract class SqliteDatabase {
             throw new Exception("not connected");
         }
 
+        Utils.log("statement cache: " + statementCache);
+        statementCache.clear();
+        statementCache = null;
+
+        if (readConnectionPool != null) {
+            Utils.log("read connection pool: " + readConnectionPool);
+            readConnectionPool.close();
+            readConnectionPool = null;
+        }
+
         connection.close();
         connection = null;
 
         Utils.log("disconnected from database");
     }
 
+    /**
+     * @param tableName The name of a table, index or virtual table.
+     * @return True if the table exists in the main database.
+     * @throws SQLException If a database error occurs.
+     */
+    protected boolean tableExists(String tableName) throws SQLException {
+        String existsSql = "SELECT COUNT(*) AS count FROM sqlite_master WHERE name = ?";
+        JSONArray existsJson = queryAndConvertToJson(existsSql, List.of(tableName));
+        return existsJson.getJSONObject(0).getInt("count") > 0;
+    }
+
     /**
      * Executes a database statement.
      *
@@ -94,14 +197,7 @@ public abstract class SqliteDatabase {
      * @throws SQLException If a database error occurs.
      */
     protected int execute(String query, List<String> values) throws SQLException {
-        try (PreparedStatement statement = getConnection().prepareStatement(query);) {
-            int i = 0;
-            for (String conditionValue : values) {
-                i++;
-                statement.setString(i, conditionValue);
-            }
-            return statement.executeUpdate();
-        }
+        return withStatement(statementCache, query, values, PreparedStatement::executeUpdate);
     }
 
     /**
@@ -124,28 +220,137 @@ public abstract class SqliteDatabase {
      * @throws SQLException If a database error occurs.
      */
     protected JSONArray queryAndConvertToJson(String query, List<String> values) throws SQLException {
-        try (PreparedStatement statement = getConnection().prepareStatement(query);) {
-            int i = 0;
-            for (String conditionValue : values) {
-                i++;
-                statement.setString(i, conditionValue);
+        return withReadStatement(query, values, statement -> {
+            try (ResultSet resultSet = statement.executeQuery();) {
+                return resultSetToJson(resultSet);
+            }
+        });
+    }
+
+    /**
+     * Executes a database query statement and writes the result in JSON format to the output stream.
+     * The result is written to a buffer while the statement is locked and copied to the output stream afterwards,
+     * so a slow output stream doesn't block the statement.
+     *
+     * @param query        The query statement.
+     * @param values       The placeholder values.
+     * @param outputStream The output stream.
+     * @return The number of rows and the last row.
+     * @throws SQLException If a database error occurs.
+     * @throws IOException  If the output stream can't be written.
+     */
+    protected ResultSetJsonWriter.Result queryAndWriteJson(String query, List<String> values, OutputStream outputStream) throws SQLException, IOException {
+        ByteArrayOutputStream bufferOutputStream = new ByteArrayOutputStream(RESULT_BUFFER_SIZE);
+        ResultSetJsonWriter.Result result;
+        try {
+            result = withReadStatement(query, values, statement -> {
+                try (ResultSet resultSet = statement.executeQuery();) {
+                    return ResultSetJsonWriter.write(resultSet, bufferOutputStream);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        bufferOutputStream.writeTo(outputStream);
+        return result;
+    }
+
+    /**
+     * Executes a database query statement and returns the first column of the first row as bytes.
+     *
+     * @param query  The query statement.
+     * @param values The placeholder values.
+     * @return The bytes, or null if there is no row.
+     * @throws SQLException If a database error occurs.
+     */
+    protected byte[] queryBytes(String query, List<String> values) throws SQLException {
+        return withReadStatement(query, values, statement -> {
+            try (ResultSet resultSet = statement.executeQuery();) {
+                return resultSet.next() ? resultSet.getBytes(1) : null;
+            }
+        });
+    }
+
+    protected interface StatementFunction<T> {
+        T apply(PreparedStatement statement) throws SQLException;
+    }
+
+    /**
+     * Like {@link #withStatement}, but borrows a connection from the read connection pool if it is open.
+     */
+    protected <T> T withReadStatement(String query, List<String> values, StatementFunction<T> function) throws SQLException {
+        ConnectionPool readConnectionPool = this.readConnectionPool;
+        if (readConnectionPool == null) {
+            return withStatement(statementCache, query, values, function);
+        }
+
+        ConnectionPool.PooledConnection connection = readConnectionPool.borrow();
+        try {
+            return withStatement(connection.statementCache(), query, values, function);
+        } finally {
+            readConnectionPool.release(connection);
+        }
+    }
+
+    /**
+     * Takes the statement from the statement cache, sets the placeholder values and applies the function.
+     * The statement is locked while it is used, so the function should only execute it and copy the result.
+     *
+     * @param statementCache The statement cache of the connection.
+     * @param query          The statement.
+     * @param values         The placeholder values.
+     * @param function       The function that executes the statement.
+     * @return The result of the function.
+     * @throws SQLException If a database error occurs.
+     */
+    protected <T> T withStatement(StatementCache statementCache, String query, List<String> values, StatementFunction<T> function) throws SQLException {
+        while (true) {
+            PreparedStatement statement = statementCache.getStatement(query);
+            synchronized (statement) {
+                //evicted from the cache in the meantime
+                if (statement.isClosed()) continue;
+
+                statement.clearParameters();
+                int i = 0;
+                for (String conditionValue : values) {
+                    i++;
+                    statement.setString(i, conditionValue);
+                }
+                return function.apply(statement);
             }
-            ResultSet resultSet = statement.executeQuery();
-            return resultSetToJson(resultSet);
         }
     }
 
     private JSONArray resultSetToJson(ResultSet resultSet) throws SQLException {
+        String[] columnNames = getColumnNames(resultSet);
+
         JSONArray array = new JSONArray();
         while (resultSet.next()) {
-            JSONObject object = new JSONObject();
-            ResultSetMetaData metaData = resultSet.getMetaData();
-            for (int i = 1; i <= metaData.getColumnCount(); i++) {
-                object.put(metaData.getColumnName(i), resultSet.getObject(i));
-            }
-            array.put(object);
+            array.put(rowToJson(resultSet, columnNames));
         }
         return array;
     }
 
+    static String[] getColumnNames(ResultSet resultSet) throws SQLException {
+        ResultSetMetaData metaData = resultSet.getMetaData();
+        String[] columnNames = new String[metaData.getColumnCount()];
+        for (int i = 0; i < columnNames.length; i++) {
+            columnNames[i] = metaData.getColumnName(i + 1);
+        }
+        return columnNames;
+    }
+
+    /**
+     * Converts the current row like the JSON results of the queries (NULL values are left out).
+     */
+    static JSONObject rowToJson(ResultSet resultSet, String[] columnNames) throws SQLException {
+        JSONObject object = new JSONObject();
+        for (int i = 0; i < columnNames.length; i++) {
+            object.put(columnNames[i], resultSet.getObject(i + 1));
+        }
+        return object;
+    }
+
 }
\ No newline at end of file
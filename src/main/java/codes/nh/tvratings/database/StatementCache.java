@@ -0,0 +1,127 @@
+package codes.nh.tvratings.database;
+
+import codes.nh.tvratings.utils.Utils;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded cache of the prepared statements of one connection, keyed by their SQL text,
+ * so SQLite doesn't have to parse and plan the same queries again.
+ * When the cache is full, the least recently used statement is closed.
+ * A statement must be synchronized on while it is used, because it is shared between threads.
+ * Evicted statements are closed after the cache lock is released, so waiting for a statement
+ * that is still in use doesn't block the other statements of the connection.
+ */
+public class StatementCache {
+
+    private final Connection connection;
+
+    private final int maxSize;
+
+    private final LinkedHashMap<String, PreparedStatement> statements;
+
+    /**
+     * Statements that were evicted and have to be closed after the cache lock is released.
+     */
+    private final List<PreparedStatement> evictedStatements = new ArrayList<>();
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    private long evictions = 0;
+
+    public StatementCache(Connection connection, int maxSize) {
+        this.connection = connection;
+        this.maxSize = maxSize;
+        this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= StatementCache.this.maxSize) return false;
+                evictions++;
+                evictedStatements.add(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @param query The SQL text.
+     * @return The cached statement, or a newly prepared one.
+     * @throws SQLException If the statement can't be prepared.
+     */
+    public PreparedStatement getStatement(String query) throws SQLException {
+        PreparedStatement statement;
+        List<PreparedStatement> closeStatements;
+        synchronized (this) {
+            statement = statements.get(query);
+            if (statement != null && !statement.isClosed()) {
+                hits++;
+                return statement;
+            }
+            misses++;
+            statement = connection.prepareStatement(query);
+            statements.put(query, statement);
+
+            closeStatements = new ArrayList<>(evictedStatements);
+            evictedStatements.clear();
+        }
+        closeStatements.forEach(this::close);
+        return statement;
+    }
+
+    /**
+     * Closes and removes all statements.
+     */
+    public void clear() {
+        List<PreparedStatement> closeStatements;
+        synchronized (this) {
+            closeStatements = new ArrayList<>(statements.values());
+            closeStatements.addAll(evictedStatements);
+            statements.clear();
+            evictedStatements.clear();
+        }
+        closeStatements.forEach(this::close);
+    }
+
+    private void close(PreparedStatement statement) {
+        //wait until the statement isn't used anymore
+        synchronized (statement) {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                Utils.log("error while closing statement: " + e.getMessage());
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return statements.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long requests = hits + misses;
+        double hitRatio = requests == 0 ? 0 : (double) hits / requests;
+        return "%d statements, %d hits, %d misses (%.1f%% hit ratio), %d evictions".formatted(size(), hits, misses, hitRatio * 100, evictions);
+    }
+
+}
@@ -0,0 +1,128 @@
+package codes.nh.tvratings.database;
+
+import java.util.Arrays;
+
+/**
+ * A map from the numeric part of IMDb ids (tt0903747 -> 903747) to a row of int values,
+ * stored in primitive arrays (open addressing) instead of boxed map entries.
+ * Rows are numbered in insertion order and all values of a new row are 0.
+ */
+public class TconstMap {
+
+    private final int columnCount;
+
+    /**
+     * row + 1 of every slot, or 0 if the slot is empty.
+     */
+    private int[] slots = new int[1024];
+
+    private int[] tconsts = new int[512];
+
+    private int[] values;
+
+    private int size = 0;
+
+    /**
+     * @param columnCount The number of values per row.
+     */
+    public TconstMap(int columnCount) {
+        this.columnCount = columnCount;
+        this.values = new int[tconsts.length * columnCount];
+    }
+
+    /**
+     * @param id An IMDb id, e.g. "tt0903747".
+     * @return The numeric part of the id, or -1 if it is not a valid id.
+     */
+    public static int parseTconst(String id) {
+        if (id == null || id.length() < 3 || !id.startsWith("tt")) return -1;
+        int tconst = 0;
+        for (int i = 2; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if (c < '0' || c > '9' || tconst > (Integer.MAX_VALUE - 9) / 10) return -1;
+            tconst = tconst * 10 + (c - '0');
+        }
+        return tconst;
+    }
+
+    /**
+     * @param tconst The numeric part of an IMDb id.
+     * @return The IMDb id with at least 7 digits, like IMDb formats them (903747 -> "tt0903747").
+     */
+    public static String formatTconst(int tconst) {
+        String digits = Integer.toString(tconst);
+        return digits.length() >= 7 ? "tt" + digits : "tt" + "0".repeat(7 - digits.length()) + digits;
+    }
+
+    /**
+     * @param tconst The numeric part of an IMDb id.
+     * @return The row of the id, or -1 if the map doesn't contain it.
+     */
+    public int getRow(int tconst) {
+        int mask = slots.length - 1;
+        for (int slot = hash(tconst) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int row = slots[slot] - 1;
+            if (tconsts[row] == tconst) return row;
+        }
+        return -1;
+    }
+
+    /**
+     * @param tconst The numeric part of an IMDb id.
+     * @return The row of the id, a new row if the map doesn't contain it yet.
+     */
+    public int addRow(int tconst) {
+        int row = getRow(tconst);
+        if (row != -1) return row;
+
+        if (size == tconsts.length) {
+            tconsts = Arrays.copyOf(tconsts, size * 2);
+            values = Arrays.copyOf(values, size * 2 * columnCount);
+        }
+        row = size++;
+        tconsts[row] = tconst;
+
+        //at most 50% of the slots are used
+        if (size * 2 > slots.length) {
+            slots = new int[slots.length * 2];
+            for (int i = 0; i < size; i++) {
+                insertSlot(i);
+            }
+        } else {
+            insertSlot(row);
+        }
+        return row;
+    }
+
+    private void insertSlot(int row) {
+        int mask = slots.length - 1;
+        int slot = hash(tconsts[row]) & mask;
+        while (slots[slot] != 0) slot = (slot + 1) & mask;
+        slots[slot] = row + 1;
+    }
+
+    /**
+     * IMDb ids are mostly consecutive, so they are mixed to spread them over the slots.
+     */
+    private static int hash(int tconst) {
+        int hash = tconst * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    public int getTconst(int row) {
+        return tconsts[row];
+    }
+
+    public int get(int row, int column) {
+        return values[row * columnCount + column];
+    }
+
+    public void set(int row, int column, int value) {
+        values[row * columnCount + column] = value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+}
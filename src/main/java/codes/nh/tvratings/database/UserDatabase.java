@@ -2,6 +2,8 @@ package codes.nh.tvratings.database;
 
 import org.json.JSONArray;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.sql.SQLException;
 import java.util.List;
 
@@ -53,14 +55,22 @@ public class UserDatabase extends SqliteDatabase {
         return execute(unfollowSql, List.of(email, showId));
     }
 
-    public JSONArray getFollowedShows(String email, String imdbDatabasePath) throws SQLException {
+    /**
+     * @return The followed shows of the user as a UTF-8 JSON array.
+     * The response is buffered, so the imdb database is detached before it is sent to a (possibly slow) client.
+     */
+    public byte[] getFollowedShows(String email, String imdbDatabasePath) throws SQLException, IOException {
         String attach = "ATTACH DATABASE ? AS imdb";
         String detach = "DETACH DATABASE imdb";
         String followsSql = "SELECT f.showId, (SELECT s.title FROM imdb.shows s WHERE s.showId = f.showId) AS title FROM follows f WHERE f.email = ?";
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
         execute(attach, List.of(imdbDatabasePath));
-        JSONArray followedShows = queryAndConvertToJson(followsSql, List.of(email));
-        execute(detach);
-        return followedShows;
+        try {
+            queryAndWriteJson(followsSql, List.of(email), outputStream);
+        } finally {
+            execute(detach);
+        }
+        return outputStream.toByteArray();
     }
 
     public JSONArray getUsersFollowingShowsWithNewEpisodes(String newImdbDatabasePath, String oldImdbDatabasePath) throws SQLException {
@@ -84,9 +94,14 @@ public class UserDatabase extends SqliteDatabase {
         //when a new episode airs, voting is enabled (n.votes IS NOT NULL AND o.votes IS NULL)
         String newEpisodeQuery = "SELECT DISTINCT f.*, s.title FROM follows f LEFT JOIN new.shows s ON s.showId = f.showId LEFT JOIN new.episodes n ON n.showId = f.showId LEFT JOIN old.episodes o ON o.episodeId = n.episodeId WHERE n.votes IS NOT NULL AND o.votes IS NULL";
 
+        //an incremental update already stored these episodes, without comparing all episodes again
+        String newlyVotedEpisodesExistsQuery = "SELECT 1 FROM new.sqlite_master WHERE type = 'table' AND name = 'newlyVotedEpisodes'";
+        String newlyVotedEpisodeQuery = "SELECT DISTINCT f.*, s.title FROM follows f JOIN new.newlyVotedEpisodes n ON n.showId = f.showId LEFT JOIN new.shows s ON s.showId = f.showId";
+
         execute(attachNewDatabase, List.of(newImdbDatabasePath));
         execute(attachOldDatabase, List.of(oldImdbDatabasePath));
-        JSONArray shows = queryAndConvertToJson(newEpisodeQuery);
+        boolean incrementalUpdate = !queryAndConvertToJson(newlyVotedEpisodesExistsQuery).isEmpty();
+        JSONArray shows = queryAndConvertToJson(incrementalUpdate ? newlyVotedEpisodeQuery : newEpisodeQuery);
         execute(detachNewDatabase);
         execute(detachOldDatabase);
         return shows;
@@ -1,7 +1,10 @@
 package codes.nh.tvratings.server;
 
 import codes.nh.tvratings.configuration.Configuration;
+import codes.nh.tvratings.database.ImdbAutocompleteIndex;
 import codes.nh.tvratings.database.ImdbDatabase;
+import codes.nh.tvratings.database.SearchParameters;
+import codes.nh.tvratings.database.ShowHeatmap;
 import codes.nh.tvratings.database.UserDatabase;
 import codes.nh.tvratings.mail.MailManager;
 import codes.nh.tvratings.utils.JWTManager;
@@ -18,6 +21,19 @@ import io.javalin.plugin.bundled.CorsContainer;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
@@ -32,7 +48,7 @@ public class APIServer {
 
     private final MailManager mailManager;
 
-    private ImdbDatabase imdbDatabase;
+    private volatile ImdbDatabase imdbDatabase;
 
     private final UserDatabase userDatabase;
 
@@ -47,14 +63,21 @@ public class APIServer {
 
         this.recaptchaManager = new RecaptchaManager(configuration.recaptchaSecret);
         this.jwtManager = new JWTManager(configuration.jwtSecretKey);
+        this.responseCache = new ResponseCache(configuration.responseCacheMegabytes * 1024L * 1024L);
     }
 
     public ImdbDatabase getImdbDatabase() {
         return imdbDatabase;
     }
 
+    /**
+     * Swaps the IMDb database and removes all cached responses of the old one.
+     *
+     * @param imdbDatabase The new IMDb database.
+     */
     public void setImdbDatabase(ImdbDatabase imdbDatabase) {
         this.imdbDatabase = imdbDatabase;
+        responseCache.clear();
     }
 
     public UserDatabase getUserDatabase() {
@@ -76,6 +99,9 @@ public class APIServer {
                 .get("", context -> context.result("hello world"))
                 .get("/search", getSearchHandler())
                 .get("/show", getShowHandler())
+                .get("/shows", getShowsHandler())
+                .get("/heatmap", getHeatmapHandler())
+                .get("/autocomplete", getAutocompleteHandler())
                 .get("/genres", getGenresHandler())
                 .post("/login", postLoginHandler())
                 .get("/followlist", getFollowListHandler())
@@ -84,9 +110,14 @@ public class APIServer {
                 .exception(Exception.class, (exception, context) -> { //todo
                     Utils.log("server error: " + exception.getMessage());
                     respondFailure(context, HttpStatus.INTERNAL_SERVER_ERROR, exception.getMessage());
-                })
+                });
+
+        //the stats are internal, so they are only public if enabled
+        if (configuration.statsEndpoint) {
+            server.get("/stats", getStatsHandler());
+        }
 
-                .start();
+        server.start();
     }
 
     /**
@@ -100,6 +131,17 @@ public class APIServer {
         context.contentType(ContentType.APPLICATION_JSON).result(responseJson);
     }
 
+    private void respondSuccess(Context context, byte[] responseJson) {
+        context.contentType(ContentType.APPLICATION_JSON).result(responseJson);
+    }
+
+    private void respondSuccess(Context context, ResponseCache.Response response) {
+        if (response.nextCursor() != null) {
+            context.header(NEXT_CURSOR_HEADER, response.nextCursor());
+        }
+        respondSuccess(context, response.body());
+    }
+
     private void respondFailure(Context context, HttpStatus status, String errorMessage) {
         JSONObject errorJson = new JSONObject();
         errorJson.put("error", errorMessage);
@@ -143,13 +185,24 @@ public class APIServer {
             corsConfig.allowHost(configuration.corsHost);
             corsConfig.allowCredentials = true;
             //corsConfig.exposeHeader("Set-Cookie");
+            corsConfig.exposeHeader(NEXT_CURSOR_HEADER);
         });
     }
 
     //==========[Endpoints]==========
 
+    private static final String NEXT_CURSOR_HEADER = "Next-Cursor";
+
+    private static final int MAX_SHOW_IDS = 50;
+
     /**
-     * example: /search?type=shows&sortColumn=VoTeS&minRating=9&sortOrder=desc&genres=DRAMA,crime&pageLimit=10&pageNumber=0
+     * example: /search?type=shows&sortColumn=VoTeS&minRating=9&sortOrder=desc&genres=DRAMA,crime&pageLimit=10&pageNumber=0<br>
+     * The {@value #NEXT_CURSOR_HEADER} response header contains a cursor for the next page (/search?...&cursor=...),
+     * which is faster than increasing the page number.
+     * With fuzzy=true, the title search of shows tolerates typos (e.g. titleSearch=breking%20bad)
+     * and the results are ordered by title similarity and votes instead.
+     * With facets=true, the response is {"results": [...], "facets": {...}} with the total number of matching rows
+     * and the counts per genre, decade and rating (see {@link ImdbDatabase#getFacets}).
      *
      * @return The /search endpoint handler.
      */
@@ -158,7 +211,7 @@ public class APIServer {
 
             Utils.log(context.ip() + " getSearchHandler");
 
-            JSONArray resultJson = imdbDatabase.search(
+            SearchParameters parameters = SearchParameters.of(
                     context.queryParam("type"),
                     context.queryParam("titleSearch"),
                     context.queryParam("minVotes"),
@@ -173,14 +226,50 @@ public class APIServer {
                     context.queryParam("sortColumn"),
                     context.queryParam("sortOrder"),
                     context.queryParam("pageNumber"),
-                    context.queryParam("pageLimit")
+                    context.queryParam("pageLimit"),
+                    context.queryParam("cursor"),
+                    context.queryParam("fuzzy")
             );
 
-            respondSuccess(context, resultJson.toString());
+            boolean facets = Boolean.TRUE.equals(Utils.stringToBooleanOrNull(context.queryParam("facets")));
+
+            respondCached(context, "search:" + parameters.toCacheKey() + ":" + facets, imdbDatabase -> {
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream(RESPONSE_BUFFER_SIZE);
+
+                //{"results":[...],"facets":{...}}
+                if (facets) outputStream.write(toBytes("{\"results\":"));
+
+                String nextCursor = imdbDatabase.search(parameters, outputStream);
+
+                if (facets) {
+                    outputStream.write(toBytes(",\"facets\":"));
+                    outputStream.write(getCachedFacets(imdbDatabase, parameters));
+                    outputStream.write('}');
+                }
+
+                return new ResponseCache.Response(outputStream.toByteArray(), nextCursor);
+            }, null);
 
         };
     }
 
+    /**
+     * The facets only depend on the filters, so they are cached separately and shared by all pages and sorts.
+     *
+     * @return The facets of the search as UTF-8 JSON.
+     */
+    private byte[] getCachedFacets(ImdbDatabase imdbDatabase, SearchParameters parameters) throws Exception {
+        String version = imdbDatabase.getVersion();
+        String key = "facets:" + parameters.toFacetsCacheKey();
+
+        ResponseCache.Response facetsResponse = responseCache.get(version, key);
+        if (facetsResponse == null) {
+            facetsResponse = new ResponseCache.Response(toBytes(imdbDatabase.getFacets(parameters).toString()), null);
+            responseCache.put(version, key, facetsResponse);
+        }
+        return facetsResponse.body();
+    }
+
     /**
      * example: /show?showId=tt0903747
      *
@@ -197,19 +286,131 @@ public class APIServer {
                 return;
             }
 
-            JSONArray showJson = imdbDatabase.getShow(showId);
-            if (showJson.isEmpty()) {
-                respondFailure(context, HttpStatus.NOT_FOUND, "showId " + showId + " not found");
+            respondCached(context, "show:" + showId, imdbDatabase -> {
+
+                //precomputed during the import
+                if (imdbDatabase.hasShowPayloads()) {
+                    byte[] showPayload = imdbDatabase.getShowPayload(showId);
+                    return showPayload == null ? null : new ResponseCache.Response(showPayload, null);
+                }
+
+                //{"show":{...},"episodes":[...]}
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream(RESPONSE_BUFFER_SIZE);
+                if (!imdbDatabase.writeShow(showId, outputStream)) {
+                    return null;
+                }
+
+                return new ResponseCache.Response(outputStream.toByteArray(), null);
+            }, "showId " + showId + " not found");
+
+        };
+    }
+
+    /**
+     * example: /shows?ids=tt0903747,tt0944947&episodes=false<br>
+     * Returns the /show responses of up to {@value #MAX_SHOW_IDS} shows as an array in the order of the ids,
+     * shows that don't exist are left out. Without episodes=false, every show contains its episodes.
+     *
+     * @return The /shows endpoint handler.
+     */
+    private Handler getShowsHandler() {
+        return context -> {
+
+            Utils.log(context.ip() + " getShowsHandler");
+
+            String ids = context.queryParam("ids");
+            if (ids == null || ids.isBlank()) {
+                respondFailure(context, HttpStatus.BAD_REQUEST, "ids not found");
+                return;
+            }
+
+            List<String> showIds = Arrays.stream(ids.split(","))
+                    .map(String::trim)
+                    .filter(showId -> !showId.isEmpty())
+                    .distinct()
+                    .toList();
+            if (showIds.size() > MAX_SHOW_IDS) {
+                respondFailure(context, HttpStatus.BAD_REQUEST, "too many ids (max " + MAX_SHOW_IDS + ")");
                 return;
             }
 
-            Utils.log(showJson.toString());
+            boolean episodes = !Boolean.FALSE.equals(Utils.stringToBooleanOrNull(context.queryParam("episodes")));
 
-            JSONArray episodesJson = imdbDatabase.getShowEpisodes(showId);
+            respondCached(context, "shows:" + String.join(",", showIds) + ":" + episodes, imdbDatabase -> {
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream(RESPONSE_BUFFER_SIZE);
+                imdbDatabase.writeShows(showIds, episodes, outputStream);
+                return new ResponseCache.Response(outputStream.toByteArray(), null);
+            }, null);
 
-            JSONObject resultJson = new JSONObject();
-            resultJson.put("show", showJson.getJSONObject(0));
-            resultJson.put("episodes", episodesJson);
+        };
+    }
+
+    /**
+     * example: /heatmap?showId=tt0903747&titles=true<br>
+     * Returns the ratings and votes of all episodes as a season x episode matrix (see {@link ShowHeatmap}),
+     * the episode ids and titles are only included with titles=true.
+     *
+     * @return The /heatmap endpoint handler.
+     */
+    private Handler getHeatmapHandler() {
+        return context -> {
+
+            Utils.log(context.ip() + " getHeatmapHandler");
+
+            String showId = context.queryParam("showId");
+            if (showId == null) {
+                respondFailure(context, HttpStatus.BAD_REQUEST, "showId not found");
+                return;
+            }
+
+            boolean titles = Boolean.TRUE.equals(Utils.stringToBooleanOrNull(context.queryParam("titles")));
+
+            respondCached(context, "heatmap:" + showId + ":" + titles, imdbDatabase -> {
+
+                //precomputed during the import
+                if (imdbDatabase.hasShowHeatmaps()) {
+                    byte[] showHeatmap = imdbDatabase.getShowHeatmap(showId, titles);
+                    return showHeatmap == null ? null : new ResponseCache.Response(showHeatmap, null);
+                }
+
+                JSONArray episodesJson = imdbDatabase.getShowEpisodes(showId);
+                if (episodesJson.isEmpty()) {
+                    return null;
+                }
+
+                JSONObject heatmapJson = ShowHeatmap.of(showId, episodesJson).toJson(titles);
+                return new ResponseCache.Response(toBytes(heatmapJson.toString()), null);
+            }, "showId " + showId + " not found");
+
+        };
+    }
+
+    /**
+     * example: /autocomplete?q=breaking%20b&limit=5<br>
+     * Returns the shows (showId, title, startYear, votes) that have a title or a word sequence in the title
+     * starting with q, ordered by votes. Answered by an in-memory index.
+     *
+     * @return The /autocomplete endpoint handler.
+     */
+    private Handler getAutocompleteHandler() {
+        return context -> {
+
+            String query = context.queryParam("q");
+            if (query == null) {
+                respondFailure(context, HttpStatus.BAD_REQUEST, "q not found");
+                return;
+            }
+
+            Integer limit = Utils.stringToIntOrNull(context.queryParam("limit"));
+            if (limit == null || limit < 0 || limit > ImdbAutocompleteIndex.MAX_LIMIT) {
+                limit = ImdbAutocompleteIndex.MAX_LIMIT;
+            }
+
+            JSONArray resultJson = imdbDatabase.autocomplete(query, limit);
+            if (resultJson == null) {
+                respondFailure(context, HttpStatus.SERVICE_UNAVAILABLE, "autocomplete index not loaded");
+                return;
+            }
 
             respondSuccess(context, resultJson.toString());
 
@@ -224,7 +425,28 @@ public class APIServer {
     private Handler getGenresHandler() {
         return context -> {
 
-            JSONArray resultJson = imdbDatabase.getGenres();
+            respondCached(context, "genres", imdbDatabase -> {
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream(RESPONSE_BUFFER_SIZE);
+                imdbDatabase.writeGenres(outputStream);
+                return new ResponseCache.Response(outputStream.toByteArray(), null);
+            }, null);
+
+        };
+    }
+
+    /**
+     * example: /stats<br>
+     * Only available if {@link Configuration#statsEndpoint} is enabled.
+     *
+     * @return The /stats endpoint handler, which returns the counters of the caches and the database connections.
+     */
+    private Handler getStatsHandler() {
+        return context -> {
+
+            JSONObject resultJson = new JSONObject();
+            resultJson.put("responseCache", responseCache.getStatsJson());
+            resultJson.put("imdbDatabase", imdbDatabase.getStatsJson());
+            resultJson.put("userDatabase", userDatabase.getStatsJson());
             respondSuccess(context, resultJson.toString());
 
         };
@@ -309,8 +531,8 @@ public class APIServer {
 
             Utils.log(email + " getFollowListHandler");
 
-            JSONArray followsJson = userDatabase.getFollowedShows(email, imdbDatabase.getDatabasePath());
-            respondSuccess(context, followsJson.toString());
+            context.contentType(ContentType.APPLICATION_JSON);
+            context.result(userDatabase.getFollowedShows(email, imdbDatabase.getDatabasePath()));
 
         };
     }
@@ -344,12 +566,191 @@ public class APIServer {
                 Utils.log(email + " unfollowed " + showId);
             }
 
-            JSONArray followsJson = userDatabase.getFollowedShows(email, imdbDatabase.getDatabasePath());
-            respondSuccess(context, followsJson.toString());
+            context.contentType(ContentType.APPLICATION_JSON);
+            context.result(userDatabase.getFollowedShows(email, imdbDatabase.getDatabasePath()));
 
         };
     }
 
+    //==========[Response Cache]==========
+
+    private final ResponseCache responseCache;
+
+    private interface ResponseLoader {
+        /**
+         * @return The response, or null if nothing was found (not cached).
+         */
+        ResponseCache.Response load(ImdbDatabase imdbDatabase) throws Exception;
+    }
+
+    /**
+     * Responds with the cached response for the current IMDb database, or loads and caches it.
+     * The response is tagged with an ETag (database version + key) and Last-Modified (import time),
+     * so clients can revalidate it with If-None-Match / If-Modified-Since and get a 304.
+     * A matching ETag is answered without touching the database (it was only sent for an existing response),
+     * "*" and If-Modified-Since are only applied after the response was found, so missing ids stay 404s.
+     *
+     * @param context         The context.
+     * @param key             The endpoint and its normalized parameters.
+     * @param loader          Loads the response from the IMDb database.
+     * @param notFoundMessage The error message if the loader finds nothing.
+     */
+    private void respondCached(Context context, String key, ResponseLoader loader, String notFoundMessage) throws Exception {
+        ImdbDatabase imdbDatabase = this.imdbDatabase;
+        String version = imdbDatabase.getVersion();
+
+        String eTag = getETag(version, key);
+        long lastModified = imdbDatabase.getLastModified();
+        if (isNotModified(context, eTag, lastModified, false)) {
+            setValidatorHeaders(context, eTag, lastModified);
+            context.status(HttpStatus.NOT_MODIFIED);
+            return;
+        }
+
+        ResponseCache.Response response = responseCache.get(version, key);
+        if (response == null) {
+            response = loader.load(imdbDatabase);
+            if (response != null) {
+                response = response.withGzipBody();
+                responseCache.put(version, key, response);
+            }
+        }
+
+        if (response == null) {
+            respondFailure(context, HttpStatus.NOT_FOUND, notFoundMessage);
+            return;
+        }
+
+        if (isNotModified(context, eTag, lastModified, true)) {
+            setValidatorHeaders(context, eTag, lastModified);
+            context.status(HttpStatus.NOT_MODIFIED);
+            return;
+        }
+
+        context.header(Header.VARY, Header.ACCEPT_ENCODING);
+
+        if (response.gzipBody() != null && acceptsGzip(context)) {
+            setValidatorHeaders(context, getGzipETag(eTag), lastModified);
+            respondSuccessGzip(context, response);
+            return;
+        }
+
+        setValidatorHeaders(context, eTag, lastModified);
+        respondSuccess(context, response);
+    }
+
+    /**
+     * The initial size of the buffers that responses are written to before they are cached.
+     */
+    private static final int RESPONSE_BUFFER_SIZE = 16 * 1024;
+
+    private byte[] toBytes(String string) {
+        return string.getBytes(StandardCharsets.UTF_8);
+    }
+
+    //==========[Conditional Requests]==========
+
+    /**
+     * @return A strong ETag: "version-hash(key)".
+     */
+    private String getETag(String version, String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = Arrays.copyOf(digest.digest(toBytes(key)), 16);
+            return "\"" + version + "-" + Base64.getUrlEncoder().withoutPadding().encodeToString(hash) + "\"";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The compressed body is a different representation, so it needs a different strong ETag.
+     */
+    private String getGzipETag(String eTag) {
+        return eTag.substring(0, eTag.length() - 1) + "-gzip\"";
+    }
+
+    private void setValidatorHeaders(Context context, String eTag, long lastModified) {
+        context.header(Header.ETAG, eTag);
+        context.header(Header.LAST_MODIFIED, formatHttpDate(lastModified));
+        //caches may store the response, but have to revalidate it
+        context.header(Header.CACHE_CONTROL, "no-cache");
+    }
+
+    /**
+     * If-None-Match takes precedence over If-Modified-Since (RFC 9110).
+     *
+     * @param exists True if the response exists, otherwise only an exact ETag match counts
+     *               ("*" and If-Modified-Since would also match responses that don't exist).
+     * @return True if the client already has the current response.
+     */
+    private boolean isNotModified(Context context, String eTag, long lastModified, boolean exists) {
+        String ifNoneMatch = context.header(Header.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            for (String requestETag : ifNoneMatch.split(",")) {
+                requestETag = requestETag.trim();
+                if (requestETag.startsWith("W/")) requestETag = requestETag.substring(2);
+                if (requestETag.equals(eTag) || requestETag.equals(getGzipETag(eTag))) return true;
+                if (exists && requestETag.equals("*")) return true;
+            }
+            return false;
+        }
+
+        String ifModifiedSince = context.header(Header.IF_MODIFIED_SINCE);
+        if (exists && ifModifiedSince != null) {
+            try {
+                long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                //HTTP dates have a resolution of seconds
+                return lastModified / 1000 <= since / 1000;
+            } catch (DateTimeParseException e) {
+                return false;
+            }
+        }
+
+        return false;
+    }
+
+    private String formatHttpDate(long time) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(time).atZone(ZoneOffset.UTC));
+    }
+
+    //==========[Compression]==========
+
+    /**
+     * @return True if the Accept-Encoding header allows gzip (e.g. "gzip, deflate, br" or "*", but not "gzip;q=0").
+     */
+    private boolean acceptsGzip(Context context) {
+        String acceptEncoding = context.header(Header.ACCEPT_ENCODING);
+        if (acceptEncoding == null) return false;
+
+        for (String encoding : acceptEncoding.split(",")) {
+            String[] encodingParts = encoding.split(";");
+            String name = encodingParts[0].trim();
+            if (!name.equalsIgnoreCase("gzip") && !name.equals("*")) continue;
+
+            boolean disabled = false;
+            for (int i = 1; i < encodingParts.length; i++) {
+                String parameter = encodingParts[i].trim().replace(" ", "");
+                if (parameter.matches("q=0(\\.0*)?")) disabled = true;
+            }
+            if (!disabled) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Writes the precompressed body directly to the servlet response, so Javalin doesn't compress it again.
+     */
+    private void respondSuccessGzip(Context context, ResponseCache.Response response) throws IOException {
+        if (response.nextCursor() != null) {
+            context.header(NEXT_CURSOR_HEADER, response.nextCursor());
+        }
+        context.contentType(ContentType.APPLICATION_JSON);
+        context.header(Header.CONTENT_ENCODING, "gzip");
+        context.res().setContentLength(response.gzipBody().length);
+        context.res().getOutputStream().write(response.gzipBody());
+    }
+
     //==========[Verification Code]==========
 
     private final VerificationCodeManager verificationCodeManager = new VerificationCodeManager();
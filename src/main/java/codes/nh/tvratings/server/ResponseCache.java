@@ -0,0 +1,146 @@
+package codes.nh.tvratings.server;
+
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A size-bounded LRU cache of response bodies and their gzip compressed versions. Every entry is tagged with the version of the data it was created from
+ * (the IMDb database), so responses that were computed from an old version are never returned.
+ */
+public class ResponseCache {
+
+    /**
+     * Smaller bodies aren't worth compressing.
+     */
+    private static final int MIN_GZIP_SIZE = 1024;
+
+    /**
+     * @param body       The response body.
+     * @param nextCursor The value of the Next-Cursor header or null.
+     * @param gzipBody   The body compressed with gzip, or null if it isn't compressed.
+     */
+    public record Response(byte[] body, String nextCursor, byte[] gzipBody) {
+
+        public Response(byte[] body, String nextCursor) {
+            this(body, nextCursor, null);
+        }
+
+        /**
+         * Compresses the body with the best compression level. This is done once per response and database version,
+         * so the higher CPU cost doesn't matter.
+         *
+         * @return This response with the compressed body, or this response if the body is too small.
+         * @throws IOException If the compression fails.
+         */
+        public Response withGzipBody() throws IOException {
+            if (gzipBody != null || body.length < MIN_GZIP_SIZE) return this;
+
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(body.length / 4);
+            try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream) {
+                {
+                    def.setLevel(Deflater.BEST_COMPRESSION);
+                }
+            }) {
+                gzipOutputStream.write(body);
+            }
+            return new Response(body, nextCursor, outputStream.toByteArray());
+        }
+
+        /**
+         * @return The number of bytes of the body and the compressed body.
+         */
+        public int size() {
+            return body.length + (gzipBody == null ? 0 : gzipBody.length);
+        }
+
+    }
+
+    private record Entry(String version, Response response) {
+    }
+
+    private final long maxBytes;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long bytes = 0;
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    private long evictions = 0;
+
+    /**
+     * @param maxBytes The maximum total size of the cached response bodies.
+     */
+    public ResponseCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param version The current version of the data.
+     * @param key     The endpoint and its normalized parameters.
+     * @return The cached response, or null if there is none for this version.
+     */
+    public synchronized Response get(String version, String key) {
+        Entry entry = entries.get(key);
+        if (entry == null || !entry.version.equals(version)) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.response;
+    }
+
+    /**
+     * Caches a response and evicts the least recently used responses if the cache is too big.
+     *
+     * @param version  The version of the data the response was created from.
+     * @param key      The endpoint and its normalized parameters.
+     * @param response The response.
+     */
+    public synchronized void put(String version, String key, Response response) {
+        if (response.size() > maxBytes) return;
+
+        Entry oldEntry = entries.put(key, new Entry(version, response));
+        if (oldEntry != null) bytes -= oldEntry.response.size();
+        bytes += response.size();
+
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            Entry eldestEntry = iterator.next().getValue();
+            iterator.remove();
+            bytes -= eldestEntry.response.size();
+            evictions++;
+        }
+    }
+
+    /**
+     * Removes all responses, e.g. when a new version of the data is available.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized JSONObject getStatsJson() {
+        long requests = hits + misses;
+        JSONObject statsJson = new JSONObject();
+        statsJson.put("entries", entries.size());
+        statsJson.put("bytes", bytes);
+        statsJson.put("maxBytes", maxBytes);
+        statsJson.put("hits", hits);
+        statsJson.put("misses", misses);
+        statsJson.put("hitRatio", requests == 0 ? 0 : (double) hits / requests);
+        statsJson.put("evictions", evictions);
+        return statsJson;
+    }
+
+}
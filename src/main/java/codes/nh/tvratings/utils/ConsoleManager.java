@@ -1,5 +1,8 @@
 package codes.nh.tvratings.utils;
 
+import codes.nh.tvratings.database.ImdbTsvBenchmark;
+
+import java.io.IOException;
 import java.util.Scanner;
 import java.util.function.Consumer;
 
@@ -9,6 +12,7 @@ public class ConsoleManager {
         Utils.log("");
         Utils.log("===[Commands]===");
         Utils.log("- test | This is a test");
+        Utils.log("- tsvbenchmark <file or url> | Compares the throughput of the dataset parsers");
         Utils.log("- exit | Stops the application");
         Utils.log("================");
         Utils.log("");
@@ -17,6 +21,13 @@ public class ConsoleManager {
 
             if (command.equalsIgnoreCase("test")) {
                 Utils.log("ok test");
+            } else if (command.toLowerCase().startsWith("tsvbenchmark ")) {
+                String source = command.substring("tsvbenchmark ".length()).trim();
+                try {
+                    ImdbTsvBenchmark.run(source);
+                } catch (IOException e) {
+                    Utils.log("error while reading " + source + ": " + e.getMessage());
+                }
             } else if (command.equalsIgnoreCase("exit")) {
                 Utils.log("shutting down...");
                 System.exit(0);
@@ -3,6 +3,12 @@ package codes.nh.tvratings.utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
@@ -52,6 +58,66 @@ public class Utils {
         return Executors.newSingleThreadScheduledExecutor().schedule(function, delayMs, TimeUnit.MILLISECONDS);
     }
 
+    //==========[MEMORY]==========
+
+    private static final File PROC_STATUS_FILE = new File("/proc/self/status");
+
+    private static final File PROC_CLEAR_REFS_FILE = new File("/proc/self/clear_refs");
+
+    /**
+     * Resets the peak heap usage and (on Linux, if permitted) the peak resident set size.
+     */
+    public static void resetPeakMemoryUsage() {
+        for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (memoryPool.getType() == MemoryType.HEAP) memoryPool.resetPeakUsage();
+        }
+        try {
+            //5 resets VmHWM
+            Files.writeString(PROC_CLEAR_REFS_FILE.toPath(), "5");
+        } catch (IOException | UnsupportedOperationException | SecurityException e) {
+            //not supported: VmHWM is the peak since the start of the process
+        }
+    }
+
+    /**
+     * @return The sum of the peak usages of the heap memory pools since the last reset (an upper bound of the peak heap usage).
+     */
+    public static long getPeakHeapBytes() {
+        long bytes = 0;
+        for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (memoryPool.getType() == MemoryType.HEAP) bytes += memoryPool.getPeakUsage().getUsed();
+        }
+        return bytes;
+    }
+
+    /**
+     * The peak resident set size also includes native memory, e.g. the page cache of SQLite and in-memory databases.
+     *
+     * @return The peak resident set size (VmHWM) of the process, or -1 if it is unknown (not Linux).
+     */
+    public static long getPeakRssBytes() {
+        if (!PROC_STATUS_FILE.exists()) return -1;
+        try {
+            for (String line : Files.readAllLines(PROC_STATUS_FILE.toPath())) {
+                //VmHWM:    123456 kB
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            return -1;
+        }
+        return -1;
+    }
+
+    /**
+     * @return The peak heap usage and resident set size in MB.
+     */
+    public static String getPeakMemoryString() {
+        long peakRssBytes = getPeakRssBytes();
+        return "peak heap " + getPeakHeapBytes() / 1024 / 1024 + " MB, peak rss " + (peakRssBytes == -1 ? "unknown" : peakRssBytes / 1024 / 1024 + " MB");
+    }
+
     //==========[OTHER]==========
 
     public static Integer stringToIntOrNull(String string) {
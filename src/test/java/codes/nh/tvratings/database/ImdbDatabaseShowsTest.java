@@ -0,0 +1,105 @@
+package codes.nh.tvratings.database;
+
+import codes.nh.tvratings.configuration.Configuration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Statement;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ImdbDatabaseShowsTest {
+
+    private static final List<String> SHOW_IDS = List.of("tt2", "tt404", "tt1", "tt3");
+
+    private File databaseFile;
+
+    @BeforeEach
+    public void createDatabase() throws Exception {
+        databaseFile = File.createTempFile("shows", ".sqlite3");
+
+        ImdbDatabase imdbDatabase = new ImdbDatabase(databaseFile.getPath());
+        imdbDatabase.connect();
+        try (Statement statement = imdbDatabase.getConnection().createStatement();) {
+            statement.executeUpdate("CREATE TABLE shows (showId TEXT PRIMARY KEY, title TEXT, startYear INTEGER, endYear INTEGER, rating REAL, votes INTEGER) STRICT");
+            statement.executeUpdate("INSERT INTO shows VALUES ('tt1', 'Breaking Bad', 2008, 2013, 9.5, 2000000)");
+            statement.executeUpdate("INSERT INTO shows VALUES ('tt2', 'Dark \"\u00dcnterwelt\" \\ \u6697', 2017, NULL, 8.7, 400000)");
+            statement.executeUpdate("INSERT INTO shows VALUES ('tt3', 'No Episodes', NULL, NULL, NULL, NULL)");
+
+            statement.executeUpdate("CREATE TABLE genres (showId TEXT, genre TEXT) STRICT");
+            statement.executeUpdate("INSERT INTO genres VALUES ('tt1', 'Crime'), ('tt1', 'Drama'), ('tt2', 'Mystery')");
+
+            statement.executeUpdate("CREATE TABLE episodes (episodeId TEXT PRIMARY KEY, showId TEXT, title TEXT, season INTEGER, episode INTEGER, rating REAL, votes INTEGER) STRICT");
+            statement.executeUpdate("INSERT INTO episodes VALUES ('tt10', 'tt1', 'Pilot', 1, 1, 9.0, 50000)");
+            statement.executeUpdate("INSERT INTO episodes VALUES ('tt11', 'tt1', 'Felina', 5, 16, 9.9, 150000)");
+            statement.executeUpdate("INSERT INTO episodes VALUES ('tt20', 'tt2', NULL, 1, 2, NULL, NULL)");
+            statement.executeUpdate("INSERT INTO episodes VALUES ('tt21', 'tt2', 'Secrets', 1, 1, 8.1, 30000)");
+        } finally {
+            imdbDatabase.disconnect();
+        }
+    }
+
+    @AfterEach
+    public void deleteDatabase() {
+        databaseFile.delete();
+    }
+
+    private static String writeShows(ImdbDatabase imdbDatabase, boolean episodes) throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        imdbDatabase.writeShows(SHOW_IDS, episodes, outputStream);
+        return outputStream.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void precomputedShowsAreEqualToLiveShows() throws Exception {
+        ImdbDatabase liveImdbDatabase = new ImdbDatabase(databaseFile.getPath());
+        liveImdbDatabase.connect();
+        String liveShows;
+        try {
+            assertFalse(liveImdbDatabase.hasShowPayloads());
+            liveShows = writeShows(liveImdbDatabase, true);
+
+            //built like the import
+            try (Statement statement = liveImdbDatabase.getConnection().createStatement();) {
+                statement.executeUpdate("CREATE TABLE showPayloads (showId TEXT PRIMARY KEY, json BLOB) STRICT");
+                new ImdbDatasetsImporter(liveImdbDatabase.getConnection(), new Configuration(new File("config.json")), null)
+                        .insertShowPayloads(statement, "1");
+            }
+        } finally {
+            liveImdbDatabase.disconnect();
+        }
+
+        ImdbDatabase precomputedImdbDatabase = new ImdbDatabase(databaseFile.getPath());
+        precomputedImdbDatabase.connect();
+        try {
+            assertTrue(precomputedImdbDatabase.hasShowPayloads());
+            assertEquals(liveShows, writeShows(precomputedImdbDatabase, true));
+        } finally {
+            precomputedImdbDatabase.disconnect();
+        }
+    }
+
+    @Test
+    public void showsAreInOrderOfIds() throws Exception {
+        ImdbDatabase imdbDatabase = new ImdbDatabase(databaseFile.getPath());
+        imdbDatabase.connect();
+        try {
+            String shows = writeShows(imdbDatabase, false);
+            assertTrue(shows.indexOf("\"tt2\"") < shows.indexOf("\"tt1\""));
+            assertTrue(shows.indexOf("\"tt1\"") < shows.indexOf("\"tt3\""));
+            assertFalse(shows.contains("tt404"));
+            assertFalse(shows.contains("episodes"));
+        } finally {
+            imdbDatabase.disconnect();
+        }
+    }
+
+}
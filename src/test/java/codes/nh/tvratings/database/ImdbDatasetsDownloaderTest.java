@@ -0,0 +1,137 @@
+package codes.nh.tvratings.database;
+
+import codes.nh.tvratings.configuration.Configuration;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ImdbDatasetsDownloaderTest {
+
+    private static final String ETAG = "\"v1\"";
+
+    private final String datasetName = "test-" + System.nanoTime() + ".tsv.gz";
+
+    private byte[] tsv;
+
+    private byte[] dataset;
+
+    private final AtomicLong sentBytes = new AtomicLong();
+
+    private HttpServer server;
+
+    private ImdbDatasetsDownloader downloader;
+
+    @BeforeEach
+    public void startServer() throws IOException {
+        StringBuilder tsvBuilder = new StringBuilder("tconst\taverageRating\tnumVotes\n");
+        for (int i = 0; i < 100_000; i++) {
+            tsvBuilder.append("tt").append(i).append('\t').append(i % 100 / 10.0).append('\t').append(i).append('\n');
+        }
+        tsv = tsvBuilder.toString().getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream datasetStream = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzipStream = new GZIPOutputStream(datasetStream)) {
+            gzipStream.write(tsv);
+        }
+        dataset = datasetStream.toByteArray();
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+
+        Configuration configuration = new Configuration(new File("build/test-config.json"));
+        configuration.imdbDatasetsUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+        configuration.imdbDatasetsCache = true;
+        downloader = new ImdbDatasetsDownloader(configuration);
+    }
+
+    @AfterEach
+    public void stopServer() {
+        server.stop(0);
+        File cacheDirectory = new File(new Configuration(new File("build/test-config.json")).databaseDirectory, "datasets");
+        for (String suffix : new String[]{"", ".part", ".json"}) {
+            new File(cacheDirectory, datasetName + suffix).delete();
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("ETag", ETAG);
+        if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+            return;
+        }
+
+        int start = 0;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null) {
+            start = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+            if (start >= dataset.length) {
+                exchange.sendResponseHeaders(416, -1);
+                exchange.close();
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + (dataset.length - 1) + "/" + dataset.length);
+        }
+        exchange.sendResponseHeaders(range != null ? 206 : 200, dataset.length - start);
+        try (OutputStream responseStream = exchange.getResponseBody()) {
+            responseStream.write(dataset, start, dataset.length - start);
+        }
+        sentBytes.addAndGet(dataset.length - start);
+    }
+
+    /**
+     * Reads the dataset like the importer: GZIPInputStream stops at the gzip trailer
+     * and doesn't read the wrapped stream to the end.
+     */
+    private byte[] readDataset() throws IOException {
+        try (InputStream inputStream = new GZIPInputStream(downloader.open(datasetName), 64 * 1024)) {
+            ByteArrayOutputStream tsvStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8 * 1024];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                tsvStream.write(buffer, 0, read);
+            }
+            return tsvStream.toByteArray();
+        }
+    }
+
+    @Test
+    public void unchangedDatasetIsReadFromCache() throws IOException {
+        String[] datasetNames = {datasetName};
+
+        assertArrayEquals(tsv, readDataset());
+        assertEquals(dataset.length, sentBytes.get());
+        assertTrue(downloader.hasChanges(datasetNames));
+
+        sentBytes.set(0);
+        assertArrayEquals(tsv, readDataset());
+        assertEquals(0, sentBytes.get());
+
+        downloader.markImported(datasetNames);
+        assertFalse(downloader.hasChanges(datasetNames));
+    }
+
+}